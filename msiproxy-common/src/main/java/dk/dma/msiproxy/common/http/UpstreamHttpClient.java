@@ -0,0 +1,338 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common.http;
+
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.imageio.ImageIO;
+import javax.inject.Inject;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The HTTP client used for all requests to upstream servers, such as map tile servers,
+ * WMS servers and the remote MSI providers.
+ * <p>
+ * Connections are pooled and kept alive per host, so that repeated requests to the same
+ * host do not pay for TCP and TLS connection setup. Idempotent requests that fail to
+ * connect, or where the server closes a pooled connection, are retried.
+ * <p>
+ * Request counts, failures, retries and response times are recorded per host, and logged
+ * along with the connection pool statistics every "httpClientMetricsLogMinutes" minutes.
+ */
+@ApplicationScoped
+public class UpstreamHttpClient {
+
+    static final String USER_AGENT = "MsiProxy";
+
+    @Inject
+    Logger log;
+
+    @Inject
+    @Setting(value = "httpClientMaxConnections", defaultValue = "64")
+    Long maxConnections;
+
+    @Inject
+    @Setting(value = "httpClientMaxConnectionsPerHost", defaultValue = "8")
+    Long maxConnectionsPerHost;
+
+    @Inject
+    @Setting(value = "httpClientConnectTimeoutMs", defaultValue = "5000")
+    Long connectTimeoutMs;
+
+    @Inject
+    @Setting(value = "httpClientReadTimeoutMs", defaultValue = "10000")
+    Long readTimeoutMs;
+
+    @Inject
+    @Setting(value = "httpClientKeepAliveSeconds", defaultValue = "30")
+    Long keepAliveSeconds;
+
+    @Inject
+    @Setting(value = "httpClientRetries", defaultValue = "2")
+    Long retries;
+
+    @Inject
+    @Setting(value = "httpClientMetricsLogMinutes", defaultValue = "15")
+    Long metricsLogMinutes;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private final Map<String, HostMetrics> metrics = new ConcurrentHashMap<>();
+    private final AtomicLong lastMetricsLog = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * Creates the pooled HTTP client
+     */
+    @PostConstruct
+    private void init() {
+        connectionManager = new PoolingHttpClientConnectionManager(keepAliveSeconds, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(maxConnections.intValue());
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost.intValue());
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMs.intValue())
+                .setSocketTimeout(readTimeoutMs.intValue())
+                .setConnectionRequestTimeout(readTimeoutMs.intValue())
+                .build();
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setRetryHandler(new RetryHandler())
+                .setKeepAliveStrategy((response, context) -> keepAliveSeconds * 1000L)
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAliveSeconds.longValue(), TimeUnit.SECONDS)
+                .setUserAgent(USER_AGENT)
+                .build();
+    }
+
+    /**
+     * Closes the HTTP client and all pooled connections
+     */
+    @PreDestroy
+    private void closeDown() {
+        if (httpClient != null) {
+            log.info("Closing upstream HTTP client. Metrics: " + metrics);
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.warn("Error closing upstream HTTP client: " + e);
+            }
+            httpClient = null;
+        }
+    }
+
+    /**
+     * Executes the request and handles the response using the response handler.
+     * The connection is released back to the pool when the handler returns.
+     *
+     * @param request the request
+     * @param handler the response handler
+     * @return the result of the response handler
+     */
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException {
+        HostMetrics hostMetrics = getHostMetrics(request.getURI());
+        long t0 = System.currentTimeMillis();
+        hostMetrics.requests.incrementAndGet();
+        try {
+            return httpClient.execute(request, handler);
+        } catch (IOException e) {
+            hostMetrics.failures.incrementAndGet();
+            throw e;
+        } finally {
+            hostMetrics.totalMillis.addAndGet(System.currentTimeMillis() - t0);
+            logMetrics();
+        }
+    }
+
+    /**
+     * Logs the request metrics and connection pool statistics,
+     * if they have not been logged within the last "httpClientMetricsLogMinutes" minutes
+     */
+    private void logMetrics() {
+        long now = System.currentTimeMillis();
+        long last = lastMetricsLog.get();
+        if (metricsLogMinutes > 0 &&
+                now - last >= TimeUnit.MINUTES.toMillis(metricsLogMinutes) &&
+                lastMetricsLog.compareAndSet(last, now)) {
+            log.info("Upstream HTTP client metrics: " + metrics + ", pool: " + getPoolStats());
+        }
+    }
+
+    /**
+     * Performs a GET request and reads the response body using the stream handler.
+     * Responses with a non-2xx status code result in an {@code HttpResponseException}.
+     *
+     * @param url the URL
+     * @param handler reads the response body
+     * @return the result of the stream handler
+     */
+    public <T> T get(String url, StreamHandler<T> handler) throws IOException {
+        return execute(new HttpGet(url), response -> {
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if (status < 200 || status >= 300) {
+                EntityUtils.consumeQuietly(entity);
+                throw new HttpResponseException(status, "Error fetching " + url + ": " + response.getStatusLine());
+            }
+            if (entity == null) {
+                return null;
+            }
+            try (InputStream in = entity.getContent()) {
+                return handler.handle(in);
+            }
+        });
+    }
+
+    /**
+     * Performs a GET request and returns the response body
+     * @param url the URL
+     * @return the response body
+     */
+    public byte[] getBytes(String url) throws IOException {
+        return get(url, IOUtils::toByteArray);
+    }
+
+    /**
+     * Performs a GET request and decodes the response body as an image
+     * @param url the URL
+     * @return the image, or null if the response could not be decoded as an image
+     */
+    public BufferedImage getImage(String url) throws IOException {
+        // Read the full body before decoding, so that the connection can be re-used
+        byte[] data = getBytes(url);
+        return data == null ? null : ImageIO.read(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Returns the request metrics per host
+     * @return the request metrics per host
+     */
+    public Map<String, HostMetrics> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the connection pool statistics
+     * @return the connection pool statistics
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * Returns the metrics of the host of the given URI
+     * @param uri the URI
+     * @return the metrics of the host
+     */
+    private HostMetrics getHostMetrics(URI uri) {
+        HttpHost host = URIUtils.extractHost(uri);
+        String key = host == null ? "unknown" : host.toHostString();
+        return metrics.computeIfAbsent(key, k -> new HostMetrics());
+    }
+
+    /**
+     * Reads an HTTP response body
+     */
+    @FunctionalInterface
+    public interface StreamHandler<T> {
+
+        /**
+         * Reads the response body
+         * @param in the response body
+         * @return the result
+         */
+        T handle(InputStream in) throws IOException;
+    }
+
+    /**
+     * Request metrics of a single host
+     */
+    public static class HostMetrics {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong totalMillis = new AtomicLong();
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getRetries() {
+            return retries.get();
+        }
+
+        public long getAverageMillis() {
+            long count = requests.get();
+            return count == 0 ? 0 : totalMillis.get() / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("{requests=%d, failures=%d, retries=%d, avgMs=%d}",
+                    getRequests(), getFailures(), getRetries(), getAverageMillis());
+        }
+    }
+
+    /**
+     * Retries idempotent requests that failed to connect, or where the server
+     * closed a pooled connection. Read timeouts are not retried.
+     */
+    private class RetryHandler implements HttpRequestRetryHandler {
+
+        @Override
+        public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+            if (executionCount > retries) {
+                return false;
+            }
+            HttpClientContext clientContext = HttpClientContext.adapt(context);
+            HttpRequest request = clientContext.getRequest();
+            boolean idempotent = "GET".equals(request.getRequestLine().getMethod()) ||
+                    "HEAD".equals(request.getRequestLine().getMethod());
+            boolean retriable = exception instanceof NoHttpResponseException ||
+                    exception instanceof ConnectTimeoutException ||
+                    exception instanceof ConnectException ||
+                    (exception instanceof SocketException && !clientContext.isRequestSent());
+            if (idempotent && retriable) {
+                HttpHost host = clientContext.getTargetHost();
+                metrics.computeIfAbsent(host == null ? "unknown" : host.toHostString(), k -> new HostMetrics())
+                        .retries.incrementAndGet();
+                log.debug("Retrying request " + request.getRequestLine() + " after " + exception);
+                return true;
+            }
+            return false;
+        }
+    }
+}
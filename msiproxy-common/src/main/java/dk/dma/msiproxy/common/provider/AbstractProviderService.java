@@ -16,10 +16,12 @@
 package dk.dma.msiproxy.common.provider;
 
 import dk.dma.msiproxy.common.repo.RepositoryService;
+import dk.dma.msiproxy.common.util.JsonUtils;
 import dk.dma.msiproxy.model.MessageFilter;
 import dk.dma.msiproxy.model.msi.Category;
 import dk.dma.msiproxy.model.msi.Message;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.infinispan.Cache;
 import org.jsoup.Jsoup;
@@ -27,17 +29,25 @@ import org.jsoup.nodes.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.enterprise.event.Event;
+import javax.inject.Inject;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -52,9 +62,34 @@ public abstract class AbstractProviderService {
     public static final Pattern MESSAGE_ATTACHMENT_FILE_PATTERN = Pattern.compile("^/?messages/\\w+/\\w+/\\w+/(?<id>\\d+)/(?<file>.+)$");
     public static final Pattern MESSAGE_REPO_FILE_PATTERN = Pattern.compile("^/?rest/repo/file/messages/\\w+/\\w+/\\w+/(?<id>\\d+)/(?<file>.+)$");
 
+    static final int L1_CACHE_MAX_ENTRIES = 1000;
+    static final int MAX_MESSAGE_REPO_FOLDERS = 10000;
+
     protected Logger log = LoggerFactory.getLogger(AbstractProviderService.class);
     protected List<Message> messages = new CopyOnWriteArrayList<>();
-    protected long fetchTime = -1L;
+    protected volatile long fetchTime = -1L;
+
+    /**
+     * In-process, lock-free first level cache in front of the Infinispan cache.
+     * The keys include the fetch time, and the cache is cleared whenever the messages change,
+     * or when it exceeds {@link #L1_CACHE_MAX_ENTRIES} entries
+     */
+    protected Map<String, List<Message>> l1Cache = new ConcurrentHashMap<>();
+
+    /** Memoized repository folders of the messages, indexed by message ID */
+    protected Map<Integer, Path> messageRepoFolders = new ConcurrentHashMap<>();
+
+    /** The ID's of the message repository folders referenced by each message, indexed by message ID */
+    protected volatile Map<Integer, Set<Integer>> referencedMessageIds = new HashMap<>();
+
+    /** The ID's of message repository folders no longer referenced since the last clean-up */
+    protected Set<Integer> droppedMessageIds = ConcurrentHashMap.newKeySet();
+
+    /** Whether the full message repository has been cleaned up since deployment */
+    protected boolean messageRepoCleanedUp;
+
+    @Inject
+    protected Event<MessagesUpdatedEvent> messagesUpdatedEvent;
 
     /**
      * Returns a unique id for the implementing provider service
@@ -134,13 +169,99 @@ public abstract class AbstractProviderService {
      * @param messages the new full list of active MSI messages
      */
     protected synchronized void setActiveMessages(List<Message> messages) {
+        replaceMessages(messages, System.currentTimeMillis());
+
+        // In clustered mode, publish the messages to the other nodes
+        if (getMessageCache().isClustered()) {
+            try {
+                getMessageCache().publishSnapshot(
+                        getProviderId(),
+                        new MessageSnapshot(fetchTime, JsonUtils.toJson(this.messages)));
+            } catch (Exception e) {
+                log.error("Failed publishing " + getProviderId() + " message snapshot: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Updates the full list of active MSI messages from a snapshot published by
+     * the loading node of the cluster. Ignored if the snapshot is not newer than
+     * the current list of messages.
+     * @param snapshot the message snapshot
+     */
+    protected synchronized void applySnapshot(MessageSnapshot snapshot) {
+        if (snapshot == null || snapshot.getFetchTime() <= fetchTime) {
+            return;
+        }
+
+        try {
+            Message[] snapshotMessages = JsonUtils.fromJson(snapshot.getMessages(), Message[].class);
+            replaceMessages(Arrays.asList(snapshotMessages), snapshot.getFetchTime());
+            log.info(String.format("Applied %s message snapshot %d with %d messages",
+                    getProviderId(), fetchTime, messages.size()));
+        } catch (Exception e) {
+            log.error("Failed applying " + getProviderId() + " message snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the full list of active MSI messages, clears the caches and
+     * fires a {@linkplain MessagesUpdatedEvent} for the new and changed messages
+     * @param messages the new full list of active MSI messages
+     * @param fetchTime the time the messages were fetched
+     */
+    private void replaceMessages(List<Message> messages, long fetchTime) {
+        // Record the update time of the current messages
+        Map<Integer, Long> updated = new HashMap<>();
+        this.messages.forEach(msg -> updated.put(msg.getId(), getUpdatedTime(msg)));
+
         this.messages = new CopyOnWriteArrayList<>(messages);
-        this.fetchTime = System.currentTimeMillis();
+        this.fetchTime = fetchTime;
 
         // Enforce the provider attribute of the messages
         this.messages.forEach(msg -> msg.setProvider(getProviderId()));
 
+        // Maintain the ID's of the message repository folders to keep
+        updateReferencedMessageIds(updated);
+
+        l1Cache.clear();
         getCache().clear();
+
+        // Notify observers about new and changed messages, most recently updated first
+        if (messagesUpdatedEvent != null) {
+            List<Message> changedMessages = this.messages.stream()
+                    .filter(msg -> !updated.containsKey(msg.getId()) || updated.get(msg.getId()) != getUpdatedTime(msg))
+                    .sorted(Comparator.comparingLong(this::getUpdatedTime).reversed())
+                    .collect(Collectors.toList());
+            if (!changedMessages.isEmpty()) {
+                messagesUpdatedEvent.fire(new MessagesUpdatedEvent(this, changedMessages));
+            }
+        }
+    }
+
+    /**
+     * Returns the update time of the message, or 0 if undefined
+     * @param msg the message
+     * @return the update time of the message
+     */
+    private long getUpdatedTime(Message msg) {
+        return msg.getUpdated() == null ? 0L : msg.getUpdated().getTime();
+    }
+
+    /**
+     * Should be called by sub-classes before loading messages from the data source.
+     * <p>
+     * In clustered mode, only the elected loading node should load messages from the data source.
+     * All other nodes apply the latest snapshot published by the loading node instead.
+     *
+     * @return if the messages were synchronized from the cluster, and should not be loaded from the data source
+     */
+    protected boolean loadMessagesFromCluster() {
+        if (getMessageCache().isLoadingNode()) {
+            return false;
+        }
+        applySnapshot(getMessageCache().getSnapshot(getProviderId()));
+        return true;
     }
 
     /**
@@ -149,12 +270,17 @@ public abstract class AbstractProviderService {
      * @return the key to use for caching messages defined by the given filter
      */
     public String getCacheKey(MessageFilter filter) {
-        return String.format(
-                "%s_%d_%s",
-                getProviderId(),
-                fetchTime,
-                filter.getKey()
-        );
+        return getCacheKey(filter, fetchTime);
+    }
+
+    /**
+     * Returns the key to use for caching messages defined by the given filter and fetch time
+     * @param filter the message filter
+     * @param fetchTime the fetch time of the messages
+     * @return the key to use for caching messages defined by the given filter and fetch time
+     */
+    private String getCacheKey(MessageFilter filter, long fetchTime) {
+        return getProviderId() + "_" + fetchTime + "_" + filter.getKey();
     }
 
     /**
@@ -187,11 +313,26 @@ public abstract class AbstractProviderService {
             return messages;
         }
 
-        String cacheKey = getCacheKey(filter);
-        List<Message> result = getCache().get(cacheKey);
+        // Read the fetch time before the messages, which are replaced first
+        long cacheFetchTime = fetchTime;
+        String cacheKey = getCacheKey(filter, cacheFetchTime);
+        List<Message> result = l1Cache.get(cacheKey);
         if (result == null) {
-            result = filter.filter(messages);
-            getCache().put(cacheKey, result);
+            result = getCache().get(cacheKey);
+            if (result == null) {
+                result = filter.filter(messages);
+                if (cacheFetchTime == fetchTime) {
+                    getCache().put(cacheKey, result);
+                }
+            }
+            if (l1Cache.size() >= L1_CACHE_MAX_ENTRIES) {
+                l1Cache.clear();
+            }
+            l1Cache.put(cacheKey, result);
+            // Evict the entry again, if the messages were replaced concurrently
+            if (cacheFetchTime != fetchTime) {
+                l1Cache.remove(cacheKey);
+            }
         }
         return result;
     }
@@ -224,8 +365,16 @@ public abstract class AbstractProviderService {
      * @return the associated repository folder
      */
     public Path getMessageRepoFolder(Integer id) throws IOException {
-        String repoFolder = MESSAGE_REPO_ROOT_FOLDER + "/" + getProviderId();
-        return  getRepositoryService().getHashedSubfolder(repoFolder, String.valueOf(id), true, false);
+        Path folder = messageRepoFolders.get(id);
+        if (folder == null) {
+            String repoFolder = MESSAGE_REPO_ROOT_FOLDER + "/" + getProviderId();
+            folder = getRepositoryService().getHashedSubfolder(repoFolder, String.valueOf(id), true, false);
+            if (messageRepoFolders.size() >= MAX_MESSAGE_REPO_FOLDERS) {
+                messageRepoFolders.clear();
+            }
+            messageRepoFolders.put(id, folder);
+        }
+        return folder;
     }
 
     /**
@@ -266,15 +415,42 @@ public abstract class AbstractProviderService {
      * May be called periodically to clean up the message repo folder associated
      * with the provider.
      * <p>
-     * The procedure will determine which repository message ID's are still active.
-     * and delete folders associated with messages ID's that are not active anymore.
+     * The first clean-up after deployment walks the full message repo folder and deletes
+     * folders associated with message ID's that are not referenced by active messages.
+     * Subsequent clean-ups only delete the folders of message ID's that are no longer
+     * referenced since the previous clean-up.
      */
     public void cleanUpMessageRepoFolder() {
+        // Do not clean up before the messages have been loaded
+        if (fetchTime < 0) {
+            return;
+        }
 
         long t0 = System.currentTimeMillis();
+        int deleted;
+        if (!messageRepoCleanedUp) {
+            droppedMessageIds.clear();
+            deleted = cleanUpFullMessageRepoFolder();
+            messageRepoCleanedUp = true;
+        } else {
+            deleted = cleanUpDroppedMessageRepoFolders();
+        }
+
+        log.info(String.format("Cleaned up %s message repo in %d ms. Deleted %d folders",
+                getProviderId(),
+                System.currentTimeMillis() - t0,
+                deleted));
+    }
+
+    /**
+     * Walks the full message repo folder and deletes folders associated
+     * with message ID's that are not referenced by the active messages
+     * @return the number of deleted folders
+     */
+    private int cleanUpFullMessageRepoFolder() {
 
         // Compute the ID's for message repository folders to keep
-        Set<Integer> ids = computeReferencedMessageIds(messages);
+        Set<Integer> ids = getReferencedMessageIds(referencedMessageIds);
 
         // Build a lookup map of all the paths that ara still active
         Set<Path> paths = new HashSet<>();
@@ -296,6 +472,7 @@ public abstract class AbstractProviderService {
                 .resolve(getProviderId());
         paths.add(messageRepoRoot);
 
+        AtomicInteger deleted = new AtomicInteger();
         try {
             Files.walkFileTree(messageRepoRoot, new SimpleFileVisitor<Path>() {
                 @Override
@@ -303,6 +480,7 @@ public abstract class AbstractProviderService {
                     if (!paths.contains(dir)) {
                         log.info("Deleting message repo directory :" + dir);
                         Files.delete(dir);
+                        deleted.incrementAndGet();
                     }
                     return FileVisitResult.CONTINUE;
                 }
@@ -316,57 +494,144 @@ public abstract class AbstractProviderService {
                     return FileVisitResult.CONTINUE;
                 }
             });
+        } catch (NoSuchFileException e) {
+            // Nothing to clean up
         } catch (IOException e) {
             log.error("Failed cleaning up " + getProviderId() + " message repo: " + e.getMessage());
         }
+        return deleted.get();
+    }
 
-        log.info(String.format("Cleaned up %s message repo in %d ms",
-                getProviderId(),
-                System.currentTimeMillis() - t0));
+    /**
+     * Deletes the folders of the message ID's that are no longer referenced since
+     * the previous clean-up, along with the hashed sub-folders above them, if empty
+     * @return the number of deleted folders
+     */
+    private int cleanUpDroppedMessageRepoFolders() {
+        Set<Integer> ids = new HashSet<>(droppedMessageIds);
+        droppedMessageIds.removeAll(ids);
+
+        // Message ID's may have been referenced again in the meantime
+        ids.removeAll(getReferencedMessageIds(referencedMessageIds));
+
+        int deleted = 0;
+        for (Integer id : ids) {
+            try {
+                Path folder = getMessageRepoFolder(id);
+                if (!Files.isDirectory(folder)) {
+                    continue;
+                }
+                log.info("Deleting message repo directory :" + folder);
+                FileUtils.deleteDirectory(folder.toFile());
+                deleted++;
+
+                // Delete the hashed sub-folders if they are empty
+                Path hashFolder = folder.getParent();
+                if (deleteIfEmpty(hashFolder)) {
+                    deleteIfEmpty(hashFolder.getParent());
+                }
+            } catch (IOException e) {
+                log.error("Failed deleting " + getProviderId() + " message repo folder for id " + id + ": " + e.getMessage());
+            }
+        }
+        return deleted;
     }
 
     /**
-     * The procedure will determine which repository message ID's are still active.
+     * Deletes the folder if it is empty
+     * @param folder the folder to delete
+     * @return if the folder was deleted
+     */
+    private boolean deleteIfEmpty(Path folder) {
+        try {
+            Files.delete(folder);
+            return true;
+        } catch (IOException e) {
+            // Typically a DirectoryNotEmptyException
+            return false;
+        }
+    }
+
+    /**
+     * Updates the ID's of the message repository folders referenced by the messages.
+     * <p>
+     * Only new and changed messages are processed, and ID's that are no longer
+     * referenced are recorded for deletion by the next clean-up.
+     *
+     * @param previousUpdateTimes the update times of the previous messages, indexed by message ID
+     */
+    private void updateReferencedMessageIds(Map<Integer, Long> previousUpdateTimes) {
+        Map<Integer, Set<Integer>> previousReferences = referencedMessageIds;
+        Map<Integer, Set<Integer>> references = new HashMap<>();
+        messages.forEach(msg -> {
+            Set<Integer> ids = previousReferences.get(msg.getId());
+            Long previousUpdateTime = previousUpdateTimes.get(msg.getId());
+            if (ids == null || previousUpdateTime == null || previousUpdateTime != getUpdatedTime(msg)) {
+                ids = computeReferencedMessageIds(msg);
+            }
+            references.put(msg.getId(), ids);
+        });
+
+        Set<Integer> currentIds = getReferencedMessageIds(references);
+        Set<Integer> previousIds = getReferencedMessageIds(previousReferences);
+        previousIds.removeAll(currentIds);
+        droppedMessageIds.addAll(previousIds);
+        droppedMessageIds.removeAll(currentIds);
+        referencedMessageIds = references;
+    }
+
+    /**
+     * Returns the union of the referenced message ID's
+     * @param references the referenced message ID's, indexed by message ID
+     * @return the union of the referenced message ID's
+     */
+    private Set<Integer> getReferencedMessageIds(Map<Integer, Set<Integer>> references) {
+        Set<Integer> ids = new HashSet<>();
+        references.values().forEach(ids::addAll);
+        return ids;
+    }
+
+    /**
+     * Determines which repository message ID's are referenced by the message.
      * <p>
-     * In addition to the actual ID's of active message, look at the attachments and
+     * In addition to the actual ID of the message, look at the attachments and
      * referenced files in message HTML description fields, since these may reference
      * attachments for non-active messages.
      *
-     * @param messages the list of active messages
+     * @param msg the message
      * @return the ID's for message repository folders to keep
      */
-    private Set<Integer> computeReferencedMessageIds(List<Message> messages) {
+    private Set<Integer> computeReferencedMessageIds(Message msg) {
         Set<Integer> ids = new HashSet<>();
 
         // First, add the ID of the message
-        messages.forEach(msg -> ids.add(msg.getId()));
+        ids.add(msg.getId());
 
         // Add all message ID's referenced by message attachments
-        messages.stream()
-                .filter(msg -> msg.getAttachments() != null && msg.getAttachments().size() > 0)
-                .flatMap(msg -> msg.getAttachments().stream())
-                .forEach(att -> {
-                    Matcher m = MESSAGE_ATTACHMENT_FILE_PATTERN.matcher(att.getPath());
-                    if (m.matches()) {
-                        ids.add(Integer.valueOf(m.group("id")));
-                    }
-                });
+        if (msg.getAttachments() != null) {
+            msg.getAttachments().forEach(att -> {
+                Matcher m = MESSAGE_ATTACHMENT_FILE_PATTERN.matcher(att.getPath());
+                if (m.matches()) {
+                    ids.add(Integer.valueOf(m.group("id")));
+                }
+            });
+        }
 
         // Add all message ID's referenced by message HTML description fields
-        messages.stream()
-                .filter(msg -> msg.getDescs() != null && msg.getDescs().size() > 0)
-                .flatMap(msg -> msg.getDescs().stream())
-                .filter(desc -> StringUtils.isNotBlank(desc.getDescription()))
-                .forEach(desc -> {
-                    try {
-                        // Process files referenced by <a> "href" attributes and <img> "src" attributes
-                        Document doc = Jsoup.parse(desc.getDescription());
-                        computeReferencedMessageIds(ids, doc, "a", "href");
-                        computeReferencedMessageIds(ids, doc, "img", "src");
-                    } catch (Exception ex) {
-                        log.trace("Failed computing referenced messages " + ex.getMessage());
-                    }
-                });
+        if (msg.getDescs() != null) {
+            msg.getDescs().stream()
+                    .filter(desc -> StringUtils.isNotBlank(desc.getDescription()))
+                    .forEach(desc -> {
+                        try {
+                            // Process files referenced by <a> "href" attributes and <img> "src" attributes
+                            Document doc = Jsoup.parse(desc.getDescription());
+                            computeReferencedMessageIds(ids, doc, "a", "href");
+                            computeReferencedMessageIds(ids, doc, "img", "src");
+                        } catch (Exception ex) {
+                            log.trace("Failed computing referenced messages " + ex.getMessage());
+                        }
+                    });
+        }
 
         return ids;
     }
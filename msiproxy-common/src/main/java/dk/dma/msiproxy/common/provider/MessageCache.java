@@ -15,6 +15,7 @@
  */
 package dk.dma.msiproxy.common.provider;
 
+import dk.dma.msiproxy.common.settings.annotation.Setting;
 import dk.dma.msiproxy.model.msi.Message;
 import org.infinispan.Cache;
 import org.infinispan.configuration.cache.CacheMode;
@@ -23,8 +24,15 @@ import org.infinispan.configuration.cache.ConfigurationBuilder;
 import org.infinispan.configuration.global.GlobalConfiguration;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
 import org.infinispan.eviction.EvictionStrategy;
-import org.infinispan.manager.CacheContainer;
 import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.infinispan.notifications.cachemanagerlistener.annotation.ViewChanged;
+import org.infinispan.notifications.cachemanagerlistener.event.ViewChangedEvent;
 import org.infinispan.util.concurrent.IsolationLevel;
 import org.slf4j.Logger;
 
@@ -32,22 +40,59 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * Implements the message cache with a default timeout of 10 minutes
+ * <p>
+ * If the "messageCacheClustered" setting is true, the cache container joins a JGroups cluster
+ * defined by the "messageCacheJGroupsConfig" setting. The coordinator of the cluster is the
+ * elected loading node, which loads messages from the providers and publishes them as
+ * {@linkplain MessageSnapshot snapshots} in a replicated cache. All other nodes only consume
+ * the snapshots. The filtered message lists are still cached locally on each node.
  */
 @Singleton
 public class MessageCache {
 
     final static long LIFESPAN = 30 * 60 * 1000;   // 30 minutes
     final static int MAX_ENTRIES = 20000;          // at most 20.000 entries
+    final static String SNAPSHOT_CACHE = "messageSnapshots";
 
-    protected CacheContainer cacheContainer;
+    protected EmbeddedCacheManager cacheContainer;
 
     @Inject
     private Logger log;
 
+    @Inject
+    @Setting(value = "messageCacheClustered", defaultValue = "false")
+    boolean clustered;
+
+    @Inject
+    @Setting(value = "messageCacheClusterName", defaultValue = "msiproxy")
+    String clusterName;
+
+    @Inject
+    @Setting(value = "messageCacheJGroupsConfig", defaultValue = "jgroups-udp.xml")
+    String jgroupsConfig;
+
+    @Inject
+    @Setting(value = "messageCachePayloadMaxMB", defaultValue = "64")
+    long payloadMaxMB;
+
+    /**
+     * Off-heap store for serialized message payloads
+     */
+    OffHeapByteStore payloadStore;
+
+    /**
+     * The snapshot listeners mapped by provider id
+     */
+    Map<String, Consumer<MessageSnapshot>> snapshotListeners = new ConcurrentHashMap<>();
+
     /**
      * Returns a reference to the cache with the given cache key
      * @param cacheKey the cache key
@@ -57,23 +102,126 @@ public class MessageCache {
         return cacheContainer.getCache(cacheKey);
     }
 
+    /**
+     * Returns a read-only view of the serialized payload with the given key, or null if not found
+     * @param key the payload key
+     * @return a read-only view of the serialized payload
+     */
+    public ByteBuffer getPayload(String key) {
+        return payloadStore.get(key);
+    }
+
+    /**
+     * Stores the serialized payload off-heap with the given key
+     * @param key the payload key
+     * @param data the serialized payload
+     * @return a read-only view of the stored payload
+     */
+    public ByteBuffer putPayload(String key, byte[] data) {
+        return payloadStore.put(key, data);
+    }
+
+    /**
+     * Returns if the message cache is running in clustered mode
+     * @return if the message cache is running in clustered mode
+     */
+    public boolean isClustered() {
+        return clustered;
+    }
+
+    /**
+     * Returns if this node should load messages from the providers.
+     * In non-clustered mode this is always the case. In clustered mode,
+     * only the coordinator of the cluster loads messages.
+     * @return if this node should load messages from the providers
+     */
+    public boolean isLoadingNode() {
+        return !clustered || cacheContainer == null || cacheContainer.isCoordinator();
+    }
+
+    /**
+     * Returns the replicated snapshot cache
+     * @return the replicated snapshot cache
+     */
+    private Cache<String, MessageSnapshot> getSnapshotCache() {
+        return cacheContainer.getCache(SNAPSHOT_CACHE);
+    }
+
+    /**
+     * Publishes the snapshot of messages for the given provider to the cluster.
+     * Has no effect in non-clustered mode
+     * @param providerId the provider id
+     * @param snapshot the snapshot to publish
+     */
+    public void publishSnapshot(String providerId, MessageSnapshot snapshot) {
+        if (clustered) {
+            getSnapshotCache().put(providerId, snapshot);
+            log.info("Published " + providerId + " message snapshot " + snapshot.getFetchTime());
+        }
+    }
+
+    /**
+     * Returns the latest published snapshot of messages for the given provider,
+     * or null if none is published or the cache is not clustered
+     * @param providerId the provider id
+     * @return the latest published snapshot
+     */
+    public MessageSnapshot getSnapshot(String providerId) {
+        return clustered ? getSnapshotCache().get(providerId) : null;
+    }
+
+    /**
+     * Registers a listener that is notified when another node publishes a snapshot for the provider
+     * @param providerId the provider id
+     * @param listener the listener
+     */
+    public void registerSnapshotListener(String providerId, Consumer<MessageSnapshot> listener) {
+        snapshotListeners.put(providerId, listener);
+    }
+
     /**
      * Should be called by sub-classes in a {@code @PostConstruct} method
      */
     @PostConstruct
     protected void init() {
+        if (payloadStore == null) {
+            payloadStore = new OffHeapByteStore(payloadMaxMB * 1024L * 1024L);
+        }
+
         if (cacheContainer == null) {
-            GlobalConfiguration globalConfiguration = new GlobalConfigurationBuilder()
-                    .nonClusteredDefault()  // Pre-configured for use in LOCAL mode
-                    .build();               //Builds  the GlobalConfiguration object
             Configuration localConfiguration = new ConfigurationBuilder()
                     .clustering().cacheMode(CacheMode.LOCAL)
                     .locking().isolationLevel(IsolationLevel.REPEATABLE_READ)
                     .eviction().maxEntries(MAX_ENTRIES).strategy(EvictionStrategy.LRU)
                     .expiration().lifespan(LIFESPAN)
                     .build();
-            cacheContainer = new DefaultCacheManager(globalConfiguration, localConfiguration, true);
-            log.info("Created Infinispan message cache container");
+
+            if (!clustered) {
+                GlobalConfiguration globalConfiguration = new GlobalConfigurationBuilder()
+                        .nonClusteredDefault()  // Pre-configured for use in LOCAL mode
+                        .build();               //Builds  the GlobalConfiguration object
+                cacheContainer = new DefaultCacheManager(globalConfiguration, localConfiguration, true);
+                log.info("Created Infinispan message cache container");
+
+            } else {
+                GlobalConfiguration globalConfiguration = new GlobalConfigurationBuilder()
+                        .clusteredDefault()
+                        .transport()
+                            .clusterName(clusterName)
+                            .addProperty("configurationFile", jgroupsConfig)
+                        .build();
+                Configuration snapshotConfiguration = new ConfigurationBuilder()
+                        .clustering().cacheMode(CacheMode.REPL_SYNC)
+                        .stateTransfer().fetchInMemoryState(true)
+                        .build();
+                cacheContainer = new DefaultCacheManager(globalConfiguration, localConfiguration, false);
+                cacheContainer.defineConfiguration(SNAPSHOT_CACHE, snapshotConfiguration);
+                ClusterListener listener = new ClusterListener();
+                cacheContainer.addListener(listener);
+                cacheContainer.start();
+                getSnapshotCache().addListener(listener);
+                log.info("Created clustered Infinispan message cache container. Loading node: " + isLoadingNode());
+            }
         }
     }
 
@@ -82,10 +230,53 @@ public class MessageCache {
      */
     @PreDestroy
     public void destroy() {
+        if (payloadStore != null) {
+            payloadStore.clear();
+        }
+
         if (cacheContainer != null) {
             cacheContainer.stop();
             cacheContainer = null;
             log.info("Stopped Infinispan message cache container");
         }
     }
+
+    /**
+     * Listens for cluster view changes and snapshots published by other nodes
+     */
+    @Listener
+    public class ClusterListener {
+
+        /**
+         * Called when the cluster view changes, i.e. when nodes join or leave the cluster
+         * @param event the event
+         */
+        @ViewChanged
+        public void viewChanged(ViewChangedEvent event) {
+            log.info("Message cache cluster view changed: " + event.getNewMembers()
+                    + ". Loading node: " + isLoadingNode());
+        }
+
+        /**
+         * Called when a snapshot is created or updated.
+         * Created events do not carry the value, so the snapshot is read from the cache instead.
+         * Snapshots may thus be delivered more than once, and listeners must ignore snapshots
+         * that are not newer than the current one.
+         * @param event the event
+         */
+        @CacheEntryCreated
+        @CacheEntryModified
+        public void snapshotPublished(CacheEntryEvent<String, MessageSnapshot> event) {
+            if (event.isPre() || event.isOriginLocal()) {
+                return;
+            }
+            MessageSnapshot snapshot = event instanceof CacheEntryModifiedEvent
+                    ? ((CacheEntryModifiedEvent<String, MessageSnapshot>) event).getValue()
+                    : event.getCache().get(event.getKey());
+            Consumer<MessageSnapshot> listener = snapshotListeners.get(event.getKey());
+            if (listener != null && snapshot != null) {
+                listener.accept(snapshot);
+            }
+        }
+    }
 }
@@ -0,0 +1,51 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common.provider;
+
+import java.io.Serializable;
+
+/**
+ * A serialized snapshot of the active messages of a provider.
+ * <p>
+ * In clustered mode, the snapshot is published by the node that loads the messages
+ * from the provider, and replicated to all other nodes of the cluster.
+ * The messages are serialized as JSON, since the model classes are not java-serializable.
+ */
+public class MessageSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final long fetchTime;
+    final String messages;
+
+    /**
+     * Constructor
+     * @param fetchTime the time the messages were fetched from the provider
+     * @param messages the JSON serialized list of messages
+     */
+    public MessageSnapshot(long fetchTime, String messages) {
+        this.fetchTime = fetchTime;
+        this.messages = messages;
+    }
+
+    public long getFetchTime() {
+        return fetchTime;
+    }
+
+    public String getMessages() {
+        return messages;
+    }
+}
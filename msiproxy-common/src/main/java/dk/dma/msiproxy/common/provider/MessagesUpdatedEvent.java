@@ -0,0 +1,50 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common.provider;
+
+import dk.dma.msiproxy.model.msi.Message;
+
+import java.util.List;
+
+/**
+ * CDI event fired by a provider service when its list of active messages has been replaced.
+ * <p>
+ * The event enlists the messages that are new or have changed since the previous list,
+ * sorted with the most recently updated messages first.
+ */
+public class MessagesUpdatedEvent {
+
+    final AbstractProviderService providerService;
+    final List<Message> changedMessages;
+
+    /**
+     * Constructor
+     * @param providerService the provider service whose messages were updated
+     * @param changedMessages the new and changed messages
+     */
+    public MessagesUpdatedEvent(AbstractProviderService providerService, List<Message> changedMessages) {
+        this.providerService = providerService;
+        this.changedMessages = changedMessages;
+    }
+
+    public AbstractProviderService getProviderService() {
+        return providerService;
+    }
+
+    public List<Message> getChangedMessages() {
+        return changedMessages;
+    }
+}
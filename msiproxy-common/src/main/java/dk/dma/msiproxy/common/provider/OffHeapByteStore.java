@@ -0,0 +1,121 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common.provider;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A byte store that keeps its payloads in direct (off-heap) byte buffers.
+ * <p>
+ * Used for caching serialized responses without inflating the heap.
+ * The store is bounded by the total number of payload bytes, and the
+ * least recently used payloads are evicted first.
+ */
+public class OffHeapByteStore {
+
+    final long maxBytes;
+    long size;
+    Map<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Constructor
+     * @param maxBytes the maximum number of payload bytes to store
+     */
+    public OffHeapByteStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a read-only view of the payload with the given key, or null if not found.
+     * The returned buffer has its own position and limit, and may be consumed independently
+     * @param key the payload key
+     * @return a read-only view of the payload
+     */
+    public synchronized ByteBuffer get(String key) {
+        ByteBuffer buffer = entries.get(key);
+        return (buffer == null) ? null : buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the payload to off-heap memory and stores it under the given key.
+     * Evicts the least recently used payloads if the store exceeds its maximum size.
+     * <p>
+     * Payloads larger than the maximum size are not stored, but the returned
+     * buffer can still be used for streaming the payload.
+     *
+     * @param key the payload key
+     * @param data the payload
+     * @return a read-only view of the payload
+     */
+    public synchronized ByteBuffer put(String key, byte[] data) {
+        if (data.length > maxBytes) {
+            return ByteBuffer.wrap(data).asReadOnlyBuffer();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
+
+        remove(key);
+        entries.put(key, buffer);
+        size += data.length;
+
+        // Evict the least recently used payloads
+        for (Iterator<ByteBuffer> it = entries.values().iterator(); size > maxBytes && it.hasNext(); ) {
+            size -= it.next().capacity();
+            it.remove();
+        }
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Removes the payload with the given key
+     * @param key the payload key
+     */
+    public synchronized void remove(String key) {
+        ByteBuffer buffer = entries.remove(key);
+        if (buffer != null) {
+            size -= buffer.capacity();
+        }
+    }
+
+    /**
+     * Removes all payloads from the store
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the total number of payload bytes in the store
+     * @return the total number of payload bytes in the store
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of payloads in the store
+     * @return the number of payloads in the store
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+}
@@ -29,8 +29,17 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.MessageBodyWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -50,9 +59,15 @@ public class ProviderRestService {
     @Inject
     Providers providers;
 
+    @Inject
+    MessageCache messageCache;
+
     @Context
     Request request;
 
+    @Context
+    javax.ws.rs.ext.Providers jaxrsProviders;
+
     /**
      * Returns the active MSI messages in the requested format and language.
      *
@@ -133,10 +148,28 @@ public class ProviderRestService {
                         .build();
             }
 
+            GenericEntity<List<Message>> entity = new GenericEntity<List<Message>>(messages) {
+            };
+
+            // JSON responses are cached off-heap in serialized form and streamed from there
+            if ("json".equals(messageFormat)) {
+                String payloadKey = messageFormat + "_" + etagToken;
+                ByteBuffer payload = messageCache.getPayload(payloadKey);
+                if (payload == null) {
+                    payload = messageCache.putPayload(payloadKey, serialize(entity, MediaType.APPLICATION_JSON_TYPE));
+                }
+
+                log.info("Returning serialized message list");
+                return Response
+                        .ok(streamPayload(payload), contentType)
+                        .expires(expirationDate)
+                        .tag(etag)
+                        .build();
+            }
+
             log.info("Returning message list");
             return Response
-                    .ok(new GenericEntity<List<Message>>(messages) {
-                    }, contentType)
+                    .ok(entity, contentType)
                     .expires(expirationDate)
                     .tag(etag)
                     .build();
@@ -147,4 +180,35 @@ public class ProviderRestService {
             return Response.status(500).build();
         }
     }
+
+    /**
+     * Serializes the entity using the same JAX-RS message body writer that would
+     * have been used, had the entity been returned directly from the resource.
+     * @param entity the entity to serialize
+     * @param mediaType the media type to serialize the entity as
+     * @return the serialized entity
+     */
+    @SuppressWarnings("unchecked")
+    byte[] serialize(GenericEntity<?> entity, MediaType mediaType) throws IOException {
+        Annotation[] annotations = new Annotation[0];
+        MessageBodyWriter<Object> writer = (MessageBodyWriter<Object>) jaxrsProviders.getMessageBodyWriter(
+                entity.getRawType(), entity.getType(), annotations, mediaType);
+        if (writer == null) {
+            throw new IOException("No message body writer for " + entity.getType() + " as " + mediaType);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(entity.getEntity(), entity.getRawType(), entity.getType(), annotations, mediaType,
+                new MultivaluedHashMap<>(), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a streaming output that writes the payload directly from the buffer
+     * @param payload the payload to stream
+     * @return the streaming output
+     */
+    private StreamingOutput streamPayload(ByteBuffer payload) {
+        return os -> Channels.newChannel(os).write(payload.duplicate());
+    }
 }
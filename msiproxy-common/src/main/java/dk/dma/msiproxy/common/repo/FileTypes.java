@@ -17,14 +17,19 @@ package dk.dma.msiproxy.common.repo;
 
 import org.apache.commons.io.FilenameUtils;
 
-import javax.activation.MimetypesFileTypeMap;
 import javax.annotation.PostConstruct;
 import javax.ejb.Lock;
 import javax.ejb.LockType;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Named;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -41,10 +46,46 @@ public class FileTypes {
     static final String GENERIC_ICON 		= "generic";
     static final String FILE_TYPE_FOLDER 	= "img/filetypes";
     static final String OOD                 = "application/vnd.openxmlformats-officedocument";
+    static final String UNKNOWN_TYPE        = "application/octet-stream";
+
+    /** Content types of common file extensions, in addition to the supported content types */
+    static final String[][] COMMON_CONTENT_TYPES = {
+            { "image/png",                  "png" },
+            { "image/jpeg",                 "jpe" },
+            { "image/svg+xml",              "svg" },
+            { "text/css",                   "css" },
+            { "text/csv",                   "csv" },
+            { "text/xml",                   "xml" },
+            { "application/json",           "json" },
+            { "application/javascript",     "js" },
+            { "application/rtf",            "rtf" },
+            { "application/postscript",     "ps", "eps", "ai" },
+            { "application/x-tar",          "tar" },
+            { "application/gzip",           "gz" },
+            { "application/vnd.google-earth.kml+xml", "kml" },
+            { "application/vnd.google-earth.kmz", "kmz" },
+            { "application/gpx+xml",        "gpx" },
+            { "audio/x-wav",                "wav" },
+            { "video/mp4",                  "mp4" },
+    };
+
+    /** Magic numbers used for identifying files with unknown extensions */
+    static final Object[][] MAGIC_NUMBERS = {
+            { "image/png",          new byte[] { (byte) 0x89, 'P', 'N', 'G' } },
+            { "image/jpeg",         new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF } },
+            { "image/gif",          "GIF8".getBytes(StandardCharsets.US_ASCII) },
+            { "image/tiff",         new byte[] { 'I', 'I', '*', 0 } },
+            { "image/tiff",         new byte[] { 'M', 'M', 0, '*' } },
+            { "image/bmp",          "BM".getBytes(StandardCharsets.US_ASCII) },
+            { "application/pdf",    "%PDF".getBytes(StandardCharsets.US_ASCII) },
+            { "application/zip",    new byte[] { 'P', 'K', 3, 4 } },
+    };
+    static final int MAGIC_NUMBER_LENGTH = 4;
 
     Map<String, Set<ContentType>> mimeTypeLookup = new HashMap<>();
     Map<String, ContentType> fileExtensionLookup = new HashMap<>();
     ContentType genericType = new ContentType(null, null);
+    Map<String, String> contentTypeLookup = Collections.emptyMap();
 
     /**
      * Defines the supported content types
@@ -75,6 +116,14 @@ public class FileTypes {
         addConentType(OOD + ".presentationml.template", 	"pptx",		"potx");
         addConentType(OOD + ".presentationml.slideshow", 	"pptx",		"ppsx");
         // Etc...
+
+        // Merge the common and supported content types into an immutable look-up table
+        Map<String, String> contentTypes = new HashMap<>();
+        for (String[] type : COMMON_CONTENT_TYPES) {
+            Arrays.stream(type, 1, type.length).forEach(ext -> contentTypes.put(ext, type[0]));
+        }
+        fileExtensionLookup.forEach((ext, type) -> contentTypes.put(ext, type.getMimeType()));
+        contentTypeLookup = Collections.unmodifiableMap(contentTypes);
     }
 
     /**
@@ -102,19 +151,50 @@ public class FileTypes {
     }
 
     /**
-     * Returns the content type of the file, or null if unknown
+     * Returns the content type of the file.
+     * <p>
+     * The content type is looked up by the file extension. Only if the file extension is
+     * unknown, the first bytes of the file are read and checked for known magic numbers.
+     *
      * @param path the file to check
-     * @return the content type of the file, or null if unknown
+     * @return the content type of the file, or "application/octet-stream" if unknown
      */
     public String getContentType(Path path) {
-        try {
-            // For some reason unknown, this does not work
-            // String type = Files.probeContentType(path);
-            return new MimetypesFileTypeMap().getContentType(path.toFile());
-        } catch (Exception e) {
-            // Unknown type
+        Path fileName = path.getFileName();
+        if (fileName == null) {
+            return UNKNOWN_TYPE;
+        }
+        String type = contentTypeLookup.get(FilenameUtils.getExtension(fileName.toString()).toLowerCase());
+        if (type == null) {
+            type = sniffContentType(path);
+        }
+        return type != null ? type : UNKNOWN_TYPE;
+    }
+
+    /**
+     * Returns the content type of the file based on the magic number of the file, or null if unknown
+     * @param path the file to check
+     * @return the content type of the file, or null if unknown
+     */
+    private String sniffContentType(Path path) {
+        byte[] header = new byte[MAGIC_NUMBER_LENGTH];
+        int length = 0;
+        try (InputStream in = Files.newInputStream(path)) {
+            int count;
+            while (length < header.length && (count = in.read(header, length, header.length - length)) > 0) {
+                length += count;
+            }
+        } catch (IOException e) {
             return null;
         }
+
+        for (Object[] magicNumber : MAGIC_NUMBERS) {
+            byte[] magic = (byte[]) magicNumber[1];
+            if (length >= magic.length && Arrays.equals(magic, Arrays.copyOf(header, magic.length))) {
+                return (String) magicNumber[0];
+            }
+        }
+        return null;
     }
 
     /**
@@ -15,6 +15,18 @@
  */
 package dk.dma.msiproxy.common.repo;
 
+import dk.dma.msiproxy.common.http.UpstreamHttpClient;
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 
 import javax.annotation.PostConstruct;
@@ -23,39 +35,107 @@ import javax.ejb.Lock;
 import javax.ejb.LockType;
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.io.FileOutputStream;
-import java.net.URL;
-import java.net.URLConnection;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.util.Collection;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Will asynchronously load attachments and referenced files from a remote MSI provider.
+ * <p>
+ * Attachments are loaded by a pool of "attachmentLoaderThreads" workers from a queue of at most
+ * "attachmentLoaderQueueSize" attachments, and at most "attachmentLoaderMaxPerHost" attachments
+ * are loaded concurrently from the same host. An attachment that is already queued is not queued again.
+ * <p>
+ * Attachments that exist in the local repository are revalidated using conditional requests,
+ * at most every "attachmentRevalidateMinutes" minutes, so that unchanged attachments are not re-loaded.
+ * <p>
+ * Attachments are loaded into a hidden partial file, which is moved into place once complete,
+ * so that partial attachments are never served. If a transfer fails, it is resumed from the
+ * partial file using a range request.
+ * <p>
+ * Thumbnails of loaded image attachments are created up front.
  */
 @Singleton
 @Lock(LockType.READ)
 public class RemoteAttachmentLoader {
 
-    /**
-     * Defined a worker pool size of 2 to constrain load
-     */
-    private static final int EXECUTOR_POOL_SIZE = 2;
+    static final int MAX_ATTEMPTS = 3;
+    static final int MAX_REMOTE_FILE_STATES = 10000;
+    static final String PART_FILE_SUFFIX = ".part";
 
     @Inject
     Logger log;
 
-    private ExecutorService processPool;
+    @Inject
+    UpstreamHttpClient httpClient;
+
+    @Inject
+    RepositoryMetadataCache metadataCache;
+
+    @Inject
+    ThumbnailService thumbnailService;
+
+    @Inject
+    @Setting(value = "attachmentLoaderThreads", defaultValue = "4")
+    Long threads;
+
+    @Inject
+    @Setting(value = "attachmentLoaderQueueSize", defaultValue = "1000")
+    Long queueSize;
+
+    @Inject
+    @Setting(value = "attachmentLoaderMaxPerHost", defaultValue = "2")
+    Long maxPerHost;
+
+    @Inject
+    @Setting(value = "attachmentRevalidateMinutes", defaultValue = "60")
+    Long revalidateMinutes;
+
+    private ThreadPoolExecutor processPool;
+    private final Set<String> pendingUrls = ConcurrentHashMap.newKeySet();
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private Map<String, RemoteFileState> remoteFileStates;
+
+    /**
+     * Constructor
+     */
+    public RemoteAttachmentLoader() {
+        remoteFileStates = new LinkedHashMap<String, RemoteFileState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RemoteFileState> eldest) {
+                return size() > MAX_REMOTE_FILE_STATES;
+            }
+        };
+    }
 
     /**
      * Create the worker process pool
      */
     @PostConstruct
     private void init() {
-        processPool = Executors.newFixedThreadPool(EXECUTOR_POOL_SIZE);
+        processPool = new ThreadPoolExecutor(
+                threads.intValue(),
+                threads.intValue(),
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize.intValue()));
     }
 
     /**
@@ -64,7 +144,7 @@ public class RemoteAttachmentLoader {
     @PreDestroy
     private void closeDown() {
         if (processPool != null && !processPool.isShutdown()) {
-            processPool.shutdown();
+            processPool.shutdownNow();
             processPool = null;
         }
     }
@@ -74,10 +154,61 @@ public class RemoteAttachmentLoader {
      * @param attachments the attachments to load
      */
     public void loadRemoteAttachments(Collection<RemoteAttachment> attachments) {
-        // Submit the attachments to the worked pool
-        attachments.forEach(att ->
-            processPool.submit(() -> loadRemoteAttachment(att))
-        );
+        int rejected = 0;
+        for (RemoteAttachment att : attachments) {
+            String url = att.getRemoteFileUrl();
+            if (!att.isCopyLocal() || isRecentlyValidated(att) || !pendingUrls.add(url)) {
+                continue;
+            }
+
+            // Submit the attachment to the worker pool
+            try {
+                processPool.execute(() -> {
+                    try {
+                        loadRemoteAttachment(att);
+                    } finally {
+                        pendingUrls.remove(url);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pendingUrls.remove(url);
+                rejected++;
+            }
+        }
+
+        if (rejected > 0) {
+            log.warn("Attachment queue full. Skipped loading " + rejected + " attachments");
+        }
+    }
+
+    /**
+     * Returns if the attachment exists in the local repository and has recently been validated
+     * @param att the attachment
+     * @return if the attachment has recently been validated
+     */
+    private boolean isRecentlyValidated(RemoteAttachment att) {
+        RemoteFileState state;
+        synchronized (remoteFileStates) {
+            state = remoteFileStates.get(att.getRemoteFileUrl());
+        }
+        try {
+            return state != null &&
+                    state.validated > System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(revalidateMinutes) &&
+                    metadataCache.getMetadata(att.getLocalFileRepoPath()) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the state of the remote file with the given URL
+     * @param url the URL of the remote file
+     * @return the state of the remote file
+     */
+    private RemoteFileState getRemoteFileState(String url) {
+        synchronized (remoteFileStates) {
+            return remoteFileStates.computeIfAbsent(url, key -> new RemoteFileState());
+        }
     }
 
     /**
@@ -86,28 +217,197 @@ public class RemoteAttachmentLoader {
      */
     private void loadRemoteAttachment(RemoteAttachment att) {
         long t0 = System.currentTimeMillis();
+        String url = att.getRemoteFileUrl();
+        Semaphore permits = hostPermits.computeIfAbsent(getHost(url), host -> new Semaphore(maxPerHost.intValue()));
         try {
-            // Create the directory if necessary
-            if (!Files.exists(att.getLocalFileRepoPath().getParent())) {
-                Files.createDirectories(att.getLocalFileRepoPath().getParent());
+            permits.acquire();
+            try {
+                // Create the directory if necessary
+                if (!Files.exists(att.getLocalFileRepoPath().getParent())) {
+                    Files.createDirectories(att.getLocalFileRepoPath().getParent());
+                }
+
+                RemoteFileState state = getRemoteFileState(url);
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        loadRemoteAttachment(att, state, t0);
+                        return;
+                    } catch (HttpResponseException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        // Resume the transfer from the partial file
+                        if (attempt >= MAX_ATTEMPTS) {
+                            throw e;
+                        }
+                        log.debug("Retrying attachment " + url + " after " + e);
+                    }
+                }
+            } finally {
+                permits.release();
             }
 
-            // Set up a few timeouts and fetch the attachment
-            URLConnection con = new URL(att.getRemoteFileUrl()).openConnection();
-            con.setConnectTimeout(5000); //  5 seconds
-            con.setReadTimeout(10000);   // 10 seconds
-            try (ReadableByteChannel rbc = Channels.newChannel(con.getInputStream());
-                 FileOutputStream fos = new FileOutputStream(att.getLocalFileRepoPath().toFile()))  {
-                fos.getChannel().transferFrom(rbc, 0, 1 << 24);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Failed loading attachment " + url + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the remote attachment, unless it has not been modified since it was last loaded,
+     * and resumes a previously failed transfer if possible
+     *
+     * @param att the attachment to load
+     * @param state the state of the remote file
+     * @param t0 the time the loading started
+     */
+    private void loadRemoteAttachment(RemoteAttachment att, RemoteFileState state, long t0) throws IOException {
+        String url = att.getRemoteFileUrl();
+        Path file = att.getLocalFileRepoPath();
+        Path partFile = file.resolveSibling("." + file.getFileName() + PART_FILE_SUFFIX);
+
+        HttpGet request = new HttpGet(url);
+        if (Files.exists(file)) {
+            if (state.etag != null) {
+                request.setHeader("If-None-Match", state.etag);
             }
-            log.info(String.format("Copied %s -> %s in %d ms",
-                    att.getRemoteFileUrl(),
-                    att.getLocalFileRepoPath(),
-                    System.currentTimeMillis() - t0));
+            request.setHeader("If-Modified-Since", DateUtils.formatDate(new Date(Files.getLastModifiedTime(file).toMillis())));
+        }
+
+        // Only resume the partial file if the remote file is unchanged. Weak ETags cannot be used for If-Range
+        String partValidator = (state.partEtag != null && !state.partEtag.startsWith("W/"))
+                ? state.partEtag
+                : state.partLastModified;
+        long partSize = Files.exists(partFile) ? Files.size(partFile) : 0L;
+        if (partSize > 0 && partValidator != null) {
+            request.setHeader("Range", "bytes=" + partSize + "-");
+            request.setHeader("If-Range", partValidator);
+        } else {
+            partSize = 0L;
+        }
+        long offset = partSize;
+
+        httpClient.execute(request, response -> {
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            try {
+                if (status == 304) {
+                    state.validated = System.currentTimeMillis();
+                    log.debug("Attachment " + url + " not modified");
+                    return null;
+
+                } else if (status == 416) {
+                    Files.deleteIfExists(partFile);
+                    throw new IOException("Range not satisfiable for partial attachment " + partFile);
+
+                } else if (status != 200 && status != 206) {
+                    throw new HttpResponseException(status, "Error fetching " + url + ": " + response.getStatusLine());
+
+                } else if (status == 206 && getContentRangeStart(response) != offset) {
+                    Files.deleteIfExists(partFile);
+                    throw new IOException("Unexpected content range for partial attachment " + partFile);
+                }
+
+                // A resumed transfer appends to the partial file, whereas others replace it
+                boolean resumed = status == 206 && offset > 0;
+                if (!resumed) {
+                    state.partEtag = getHeader(response, "ETag");
+                    state.partLastModified = getHeader(response, "Last-Modified");
+                }
+                long bytes = 0L;
+                if (entity != null) {
+                    try (InputStream in = entity.getContent();
+                         OutputStream out = Files.newOutputStream(
+                                 partFile,
+                                 StandardOpenOption.CREATE,
+                                 StandardOpenOption.WRITE,
+                                 resumed ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+                        bytes = IOUtils.copyLarge(in, out);
+                    }
+                }
+
+                // Use the remote modification time, if defined, and move the complete file into place
+                Date lastModified = state.partLastModified == null ? null : DateUtils.parseDate(state.partLastModified);
+                if (lastModified != null) {
+                    Files.setLastModifiedTime(partFile, FileTime.fromMillis(lastModified.getTime()));
+                }
+                Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                state.etag = state.partEtag;
+                state.partEtag = null;
+                state.partLastModified = null;
+                state.validated = System.currentTimeMillis();
+
+                metadataCache.invalidate(file);
+                log.info(String.format("Copied %s -> %s (%d bytes%s) in %d ms",
+                        url,
+                        file,
+                        bytes,
+                        resumed ? " resumed at " + offset : "",
+                        System.currentTimeMillis() - t0));
+
+                // Have the thumbnails ready when the attachment is requested
+                thumbnailService.createThumbnails(file);
+                return null;
 
+            } finally {
+                EntityUtils.consumeQuietly(entity);
+            }
+        });
+    }
+
+    /**
+     * Returns the first byte position of the Content-Range header of the response, or -1 if undefined
+     * @param response the response
+     * @return the first byte position of the Content-Range header
+     */
+    private long getContentRangeStart(HttpResponse response) {
+        // Example: "bytes 1000-1999/2000"
+        String range = getHeader(response, "Content-Range");
+        if (range != null && range.startsWith("bytes ") && range.indexOf('-') > 6) {
+            try {
+                return Long.parseLong(range.substring(6, range.indexOf('-')).trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Returns the value of the given response header, or null if undefined
+     * @param response the response
+     * @param name the header name
+     * @return the value of the response header
+     */
+    private String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * Returns the host of the given URL
+     * @param url the URL
+     * @return the host of the URL
+     */
+    private String getHost(String url) {
+        try {
+            HttpHost host = URIUtils.extractHost(new URI(url));
+            return host == null ? "unknown" : host.toHostString();
         } catch (Exception e) {
-            log.error("Failed loading attachment " + att.getRemoteFileUrl() + ": " + e.getMessage());
+            return "unknown";
         }
     }
 
+    /**
+     * The state of a remote file, used for conditional and range requests.
+     * <p>
+     * The validators of the local file and the partial file are kept separately,
+     * since a partial file may hold a newer version of the remote file.
+     */
+    private static class RemoteFileState {
+        volatile String etag;
+        volatile String partEtag;
+        volatile String partLastModified;
+        volatile long validated;
+    }
 }
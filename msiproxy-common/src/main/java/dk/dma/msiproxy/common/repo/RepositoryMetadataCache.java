@@ -0,0 +1,380 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common.repo;
+
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import dk.dma.msiproxy.model.msi.Attachment;
+import org.slf4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the metadata of repository files, i.e. size, last-modified time, content type and ETag,
+ * along with the file listings of repository folders.
+ * <p>
+ * The folders of all cached files are registered with a {@code WatchService}, and cached entries
+ * are evicted when files in the folders are created, modified or deleted. Components that write
+ * repository files should also call {@link #invalidate(Path)}, since file system events are not
+ * delivered on all file systems. As a last resort, entries expire after "repoMetadataMaxAgeSeconds".
+ * <p>
+ * At most {@link #MAX_WATCHED_FOLDERS} folders are watched. When exceeded, the least recently
+ * registered or used folder is no longer watched, and its cached entries are evicted.
+ * If the folder of a file cannot be watched, the metadata of the file is not cached.
+ */
+@ApplicationScoped
+public class RepositoryMetadataCache {
+
+    static final int MAX_WATCHED_FOLDERS = 4096;
+
+    @Inject
+    Logger log;
+
+    @Inject
+    FileTypes fileTypes;
+
+    @Inject
+    @Setting(value = "repoMetadataCacheSize", defaultValue = "10000")
+    Long cacheSize;
+
+    @Inject
+    @Setting(value = "repoMetadataMaxAgeSeconds", defaultValue = "300")
+    Long maxAgeSeconds;
+
+    private WatchService watchService;
+    private final Map<Path, WatchKey> watchedFolders = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong invalidations = new AtomicLong();
+    private Map<Path, FileMetadata> metadata;
+    private Map<Path, Listing> listings;
+
+    /**
+     * Starts watching for file changes
+     */
+    @PostConstruct
+    private void init() {
+        metadata = new LinkedHashMap<Path, FileMetadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, FileMetadata> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        listings = new LinkedHashMap<Path, Listing>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+                return size() > MAX_WATCHED_FOLDERS;
+            }
+        };
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Thread watchThread = new Thread(this::processEvents, "RepositoryMetadataCache");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        } catch (IOException e) {
+            log.warn("Repository metadata cache disabled. Failed creating watch service: " + e);
+            watchService = null;
+        }
+    }
+
+    /**
+     * Stops watching for file changes
+     */
+    @PreDestroy
+    private void closeDown() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+            }
+            watchService = null;
+        }
+    }
+
+    /**
+     * Returns the metadata of the file, or null if the file does not exist
+     *
+     * @param file the file
+     * @return the metadata of the file, or null if the file does not exist
+     */
+    public FileMetadata getMetadata(Path file) throws IOException {
+        synchronized (metadata) {
+            FileMetadata result = metadata.get(file);
+            if (result != null && !isExpired(result.cached)) {
+                return result;
+            }
+        }
+
+        // Watch the folder before reading the attributes, so that no change goes unnoticed
+        boolean watched = watch(file.getParent());
+        long generation = invalidations.get();
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        FileMetadata result = new FileMetadata(
+                attrs.isDirectory(),
+                attrs.size(),
+                attrs.lastModifiedTime().toMillis(),
+                attrs.isDirectory() ? null : fileTypes.getContentType(file));
+
+        if (watched) {
+            synchronized (metadata) {
+                if (generation == invalidations.get()) {
+                    metadata.put(file, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the file listing of the folder. If the listing is not cached,
+     * it is loaded using the listing loader.
+     *
+     * @param folder the folder
+     * @param loader loads the file listing of the folder
+     * @return the file listing of the folder
+     */
+    public List<Attachment> getListing(Path folder, Callable<List<Attachment>> loader) throws Exception {
+        synchronized (listings) {
+            Listing listing = listings.get(folder);
+            if (listing != null && !isExpired(listing.cached)) {
+                return listing.attachments;
+            }
+        }
+
+        boolean watched = watch(folder);
+        long generation = invalidations.get();
+
+        List<Attachment> attachments = loader.call();
+
+        if (watched) {
+            synchronized (listings) {
+                if (generation == invalidations.get()) {
+                    listings.put(folder, new Listing(attachments));
+                }
+            }
+        }
+        return attachments;
+    }
+
+    /**
+     * Evicts the cached metadata of the file and the listing of its folder
+     * @param file the file that has been created, modified or deleted
+     */
+    public void invalidate(Path file) {
+        invalidations.incrementAndGet();
+        synchronized (metadata) {
+            metadata.remove(file);
+        }
+        synchronized (listings) {
+            listings.remove(file);
+            listings.remove(file.getParent());
+        }
+    }
+
+    /**
+     * Evicts all cached metadata and listings
+     */
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        synchronized (metadata) {
+            metadata.clear();
+        }
+        synchronized (listings) {
+            listings.clear();
+        }
+    }
+
+    /**
+     * Registers the folder with the watch service, unless already registered
+     * @param folder the folder to watch
+     * @return if the folder is watched
+     */
+    private boolean watch(Path folder) {
+        if (watchService == null || folder == null) {
+            return false;
+        }
+        Map.Entry<Path, WatchKey> evicted = null;
+        synchronized (watchedFolders) {
+            WatchKey key = watchedFolders.get(folder);
+            if (key != null && key.isValid()) {
+                return true;
+            }
+            try {
+                key = folder.register(
+                        watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException | ClosedWatchServiceException e) {
+                return false;
+            }
+            watchedFolders.put(folder, key);
+            if (watchedFolders.size() > MAX_WATCHED_FOLDERS) {
+                Iterator<Map.Entry<Path, WatchKey>> it = watchedFolders.entrySet().iterator();
+                evicted = it.next();
+                it.remove();
+            }
+        }
+
+        // Stop watching the least recently used folder, whose entries can then no longer be cached
+        if (evicted != null) {
+            log.debug("Max watched repository folders exceeded. No longer watching " + evicted.getKey());
+            evicted.getValue().cancel();
+            evictFolder(evicted.getKey());
+        }
+        return true;
+    }
+
+    /**
+     * Evicts the cached metadata of the files of the folder and the listing of the folder
+     * @param folder the folder that is no longer watched
+     */
+    private void evictFolder(Path folder) {
+        invalidations.incrementAndGet();
+        synchronized (metadata) {
+            metadata.keySet().removeIf(file -> folder.equals(file.getParent()));
+        }
+        synchronized (listings) {
+            listings.remove(folder);
+        }
+    }
+
+    /**
+     * Processes file system events until the watch service is closed
+     */
+    private void processEvents() {
+        WatchService service = watchService;
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path folder = (Path) key.watchable();
+            key.pollEvents().forEach(event -> processEvent(folder, event));
+
+            // The key is no longer valid if the folder has been deleted
+            if (!key.reset()) {
+                synchronized (watchedFolders) {
+                    watchedFolders.remove(folder, key);
+                }
+                evictFolder(folder);
+            }
+        }
+    }
+
+    /**
+     * Evicts the cached entries affected by the file system event
+     * @param folder the watched folder
+     * @param event the file system event
+     */
+    private void processEvent(Path folder, WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            log.debug("Repository watch events overflowed. Clearing metadata cache");
+            invalidateAll();
+        } else {
+            invalidate(folder.resolve((Path) event.context()));
+        }
+    }
+
+    /**
+     * Returns if a cache entry cached at the given time has expired
+     * @param cached the time the entry was cached
+     * @return if the cache entry has expired
+     */
+    private boolean isExpired(long cached) {
+        return cached < System.currentTimeMillis() - maxAgeSeconds * 1000L;
+    }
+
+    /**
+     * The metadata of a repository file
+     */
+    public static class FileMetadata {
+        final boolean directory;
+        final long size;
+        final long lastModified;
+        final String contentType;
+        final String etag;
+        final long cached = System.currentTimeMillis();
+
+        FileMetadata(boolean directory, long size, long lastModified, String contentType) {
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.etag = lastModified + "_" + size;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /** Returns the ETag value, without quotes */
+        public String getETag() {
+            return etag;
+        }
+    }
+
+    /**
+     * A cached folder listing
+     */
+    private static class Listing {
+        final List<Attachment> attachments;
+        final long cached = System.currentTimeMillis();
+
+        Listing(List<Attachment> attachments) {
+            this.attachments = attachments;
+        }
+    }
+}
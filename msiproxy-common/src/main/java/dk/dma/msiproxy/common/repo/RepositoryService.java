@@ -31,6 +31,7 @@ import javax.inject.Inject;
 import javax.servlet.ServletContext;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
@@ -38,17 +39,25 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * A repository service.<br>
@@ -62,6 +71,20 @@ import java.util.List;
 @Lock(LockType.READ)
 public class RepositoryService {
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final MessageDigest MD5_PROTOTYPE;
+    static {
+        try {
+            MD5_PROTOTYPE = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("This should never happen", e);
+        }
+    }
+
+    private static final int MAX_THUMBNAIL_WAIT_SECONDS = 10;
+    private static final Pattern THUMBNAIL_FILE_PATTERN = Pattern.compile(".+_thumb_\\d{1,3}\\.\\w+");
+    private static final Pattern MAP_IMAGE_FILE_PATTERN = Pattern.compile("map_\\d{1,3}\\.png");
+
     @Context
     ServletContext servletContext;
 
@@ -82,6 +105,9 @@ public class RepositoryService {
     @Inject
     ThumbnailService thumbnailService;
 
+    @Inject
+    RepositoryMetadataCache metadataCache;
+
     @Inject
     MsiProxyApp app;
 
@@ -146,6 +172,28 @@ public class RepositoryService {
         return filePath.toString().replace('\\', '/');
     }
 
+    /**
+     * Returns the two hex digits of the first byte of the MD5 hash of the target,
+     * as used for the hashed sub-folders of the repository
+     *
+     * @param target the target name used for the hash
+     * @return the two hex digits of the first byte of the MD5 hash of the target
+     */
+    static String getHash(String target) {
+        MessageDigest md;
+        try {
+            md = (MessageDigest) MD5_PROTOTYPE.clone();
+        } catch (CloneNotSupportedException e) {
+            try {
+                md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException("This should never happen");
+            }
+        }
+        int hash = md.digest(target.getBytes(StandardCharsets.UTF_8))[0] & 0xff;
+        return new String(new char[] { HEX_DIGITS[hash >> 4], HEX_DIGITS[hash & 0x0f] });
+    }
+
     /**
      * Creates two levels of sub-folders within the {@code rootFolder} based on
      * a MD5 hash of the {@code target}.
@@ -157,21 +205,7 @@ public class RepositoryService {
      * @return the sub-folder associated with the target
      */
     public Path getHashedSubfolder(String rootFolder, String target, boolean includeTarget, boolean createFolders) throws IOException {
-        byte[] bytes = target.getBytes("utf-8");
-
-        // MD5 hash the ID
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new IOException("This should never happen");
-        }
-        md.update(bytes);
-        bytes = md.digest();
-        String hash = String.valueOf(Integer.toHexString(bytes[0] & 0xff));
-        while (hash.length() < 2) {
-            hash = "0" + hash;
-        }
+        String hash = getHash(target);
 
         Path folder = getRepoRoot();
 
@@ -199,19 +233,28 @@ public class RepositoryService {
 
 
     /**
-     * Streams the file specified by the path
+     * Streams the file specified by the path.
+     * <p>
+     * A single byte range requested using the "Range" header is honoured, so that
+     * interrupted downloads of large attachments can be resumed.
+     *
      * @param path the path
+     * @param range the "Range" header
+     * @param ifRange the "If-Range" header
      * @param request the servlet request
      * @return the response
      */
     @GET
     @javax.ws.rs.Path("/file/{file:.+}")
     public Response streamFile(@PathParam("file") String path,
+                               @HeaderParam("Range") String range,
+                               @HeaderParam("If-Range") String ifRange,
                                @Context Request request) throws IOException {
 
         Path f = repoRoot.resolve(path);
 
-        if (Files.notExists(f) || Files.isDirectory(f)) {
+        RepositoryMetadataCache.FileMetadata attrs = metadataCache.getMetadata(f);
+        if (attrs == null || attrs.isDirectory()) {
             log.warn("Failed streaming file: " + f);
             return Response
                     .status(404)
@@ -221,10 +264,11 @@ public class RepositoryService {
         // Set expiry to cacheTimeout minutes
         Date expirationDate = new Date(System.currentTimeMillis() + 1000L * 60L * cacheTimeout);
 
-        String mt = fileTypes.getContentType(f);
+        String mt = attrs.getContentType();
+        long size = attrs.getSize();
 
         // Check for an ETag match
-        EntityTag etag = new EntityTag("" + Files.getLastModifiedTime(f).toMillis() + "_" + Files.size(f), true);
+        EntityTag etag = new EntityTag(attrs.getETag());
         Response.ResponseBuilder responseBuilder = request.evaluatePreconditions(etag);
         if (responseBuilder != null) {
             // Etag match
@@ -234,40 +278,81 @@ public class RepositoryService {
                     .build();
         }
 
-        log.trace("Streaming file: " + f);
-        return Response
-                .ok(f.toFile(), mt)
+        // Check for a byte range request
+        WebUtils.ByteRange byteRange = WebUtils.getByteRange(range, ifRange, etag.toString(), size);
+        if (!byteRange.isSatisfiable()) {
+            return Response
+                    .status(416)
+                    .header("Content-Range", byteRange.getContentRange())
+                    .build();
+        } else if (byteRange.isPartial()) {
+            log.trace("Streaming bytes " + byteRange.getStart() + "-" + byteRange.getEnd() + " of file: " + f);
+            responseBuilder = Response
+                    .status(206)
+                    .header("Content-Range", byteRange.getContentRange());
+        } else {
+            log.trace("Streaming file: " + f);
+            responseBuilder = Response.ok();
+        }
+
+        return responseBuilder
+                .entity(streamFileRange(f, byteRange.getStart(), byteRange.getLength()))
+                .type(mt)
+                .header("Accept-Ranges", "bytes")
+                .header("Content-Length", byteRange.getLength())
                 .expires(expirationDate)
                 .tag(etag)
                 .build();
     }
 
     /**
-     * Returns the thumbnail to use for the file specified by the path
+     * Returns a streaming entity for the given byte range of the file
+     * @param file the file
+     * @param start the position of the first byte to stream
+     * @param length the number of bytes to stream
+     * @return the streaming entity
+     */
+    private StreamingOutput streamFileRange(Path file, long start, long length) {
+        return output -> {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                WebUtils.transferTo(channel, start, length, output);
+            }
+        };
+    }
+
+    /**
+     * Returns the thumbnail to use for the file specified by the path.
+     * <p>
+     * If the thumbnail has not been created yet, the file type icon is returned, unless the
+     * "wait" parameter specifies the number of seconds (at most 10) to wait for the thumbnail.
+     *
      * @param path the path
      * @param size the icon size, either 32, 64 or 128
+     * @param wait the max number of seconds to wait for the thumbnail to be created
      * @return the thumbnail to use for the file specified by the path
      */
     @GET
     @javax.ws.rs.Path("/thumb/{file:.+}")
     public Response getThumbnail(@PathParam("file") String path,
-                                 @QueryParam("size") @DefaultValue("64") int size) throws IOException, URISyntaxException {
+                                 @QueryParam("size") @DefaultValue("64") int size,
+                                 @QueryParam("wait") @DefaultValue("0") int wait) throws IOException, URISyntaxException {
 
         IconSize iconSize = IconSize.getIconSize(size);
         Path f = repoRoot.resolve(path);
 
-        if (Files.notExists(f) || Files.isDirectory(f)) {
+        RepositoryMetadataCache.FileMetadata attrs = metadataCache.getMetadata(f);
+        if (attrs == null || attrs.isDirectory()) {
             log.warn("Failed streaming file: " + f);
             return Response.status(404).build();
         }
 
         // Check if we can generate a thumbnail for image files
         String thumbUri;
-        Path thumbFile = thumbnailService.getThumbnail(f, iconSize);
+        Path thumbFile = thumbnailService.getThumbnail(f, iconSize, Math.min(wait, MAX_THUMBNAIL_WAIT_SECONDS));
         if (thumbFile != null) {
             thumbUri = app.getBaseUri() + getRepoUri(thumbFile);
         } else {
-            // Fall back to file type icons
+            // Fall back to file type icons, e.g. while the thumbnail is being created
             thumbUri = app.getBaseUri() + "/" + fileTypes.getIcon(f, iconSize);
         }
 
@@ -286,35 +371,48 @@ public class RepositoryService {
     @javax.ws.rs.Path("/list/{folder:.+}")
     @Produces("application/json;charset=UTF-8")
     @NoCache
-    public List<Attachment> listFiles(@PathParam("folder") String path) throws IOException {
+    public List<Attachment> listFiles(@PathParam("folder") String path) throws Exception {
+        Path folder = repoRoot.resolve(path);
+        return metadataCache.getListing(folder, () -> loadFileListing(path, folder));
+    }
+
+    /**
+     * Loads the list of files in the folder
+     * @param path the path
+     * @param folder the folder
+     * @return the list of files in the folder
+     */
+    private List<Attachment> loadFileListing(String path, Path folder) throws IOException {
 
         List<Attachment> result = new ArrayList<>();
-        Path folder = repoRoot.resolve(path);
 
-        if (Files.exists(folder) && Files.isDirectory(folder)) {
-
-            // Filter out directories, hidden files, thumbnails and map images
-            DirectoryStream.Filter<Path> filter = file ->
-                    Files.isRegularFile(file) &&
-                            !file.getFileName().toString().startsWith(".") &&
-                            !file.getFileName().toString().matches(".+_thumb_\\d{1,3}\\.\\w+") && // Thumbnails
-                            !file.getFileName().toString().matches("map_\\d{1,3}\\.png"); // Map image
-
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, filter)) {
-                stream.forEach(f -> {
-                    Attachment vo = new Attachment();
-                    vo.setName(f.getFileName().toString());
-                    vo.setPath(WebUtils.encodeURI(path + "/" + f.getFileName().toString()));
-                    vo.setDirectory(Files.isDirectory(f));
-                    try {
-                        vo.setUpdated(new Date(Files.getLastModifiedTime(f).toMillis()));
-                        vo.setSize(Files.size(f));
-                    } catch (Exception e) {
-                        log.trace("Error reading file attribute for " + f);
+        // Filter out directories, hidden files, thumbnails and map images
+        DirectoryStream.Filter<Path> filter = file -> {
+            String name = file.getFileName().toString();
+            return !name.startsWith(".") &&
+                    !THUMBNAIL_FILE_PATTERN.matcher(name).matches() &&
+                    !MAP_IMAGE_FILE_PATTERN.matcher(name).matches();
+        };
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, filter)) {
+            stream.forEach(f -> {
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(f, BasicFileAttributes.class);
+                    if (attrs.isRegularFile()) {
+                        Attachment vo = new Attachment();
+                        vo.setName(f.getFileName().toString());
+                        vo.setPath(WebUtils.encodeURI(path + "/" + f.getFileName().toString()));
+                        vo.setDirectory(false);
+                        vo.setUpdated(new Date(attrs.lastModifiedTime().toMillis()));
+                        vo.setSize(attrs.size());
+                        result.add(vo);
                     }
-                    result.add(vo);
-                });
-            }
+                } catch (IOException e) {
+                    log.trace("Error reading file attribute for " + f);
+                }
+            });
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            // No files
         }
         return result;
     }
@@ -15,10 +15,8 @@
  */
 package dk.dma.msiproxy.common.repo;
 
-import dk.dma.msiproxy.common.settings.annotation.Setting;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 
 import javax.annotation.PostConstruct;
@@ -27,27 +25,35 @@ import javax.ejb.Lock;
 import javax.ejb.LockType;
 import javax.enterprise.context.ApplicationScoped;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.inject.Inject;
 import javax.inject.Named;
 import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Creates thumbnails
  * <p>
- *     An ExecutorService is used to limit load on the system
+ *     Thumbnails are created asynchronously by an ExecutorService, which is used to limit load on the system.
+ *     Concurrent requests for the same thumbnail share a single thumbnail creation, and requests
+ *     for a thumbnail that is not yet created never wait for it.
  * </p>
  */
 @Named
@@ -61,27 +67,20 @@ public class ThumbnailService {
     Logger log;
 
     @Inject
-    @Setting(value = "vipsPath")
-    String vipsCmd;
+    FileTypes fileTypes;
 
-    Set<String> vipsFileTypes = new HashSet<>();
+    @Inject
+    VipsThumbnailer vipsThumbnailer;
 
     @Inject
-    FileTypes fileTypes;
+    RepositoryMetadataCache metadataCache;
 
     private ExecutorService processPool;
+    private final Map<Path, CompletableFuture<Path>> pendingThumbnails = new ConcurrentHashMap<>();
 
     @PostConstruct
     private void init() {
         processPool = Executors.newFixedThreadPool(EXECUTOR_POOL_SIZE);
-
-        // Enlist image types supported by vips (avoid gif)
-        vipsFileTypes.add("image/bmp");
-        vipsFileTypes.add("image/jpeg");
-        vipsFileTypes.add("image/jpg");
-        vipsFileTypes.add("image/tiff");
-        vipsFileTypes.add("image/tif");
-        vipsFileTypes.add("image/png");
     }
 
     @PreDestroy
@@ -94,121 +93,228 @@ public class ThumbnailService {
 
 
     /**
-     * Returns or creates the a thumbnail for the given file if it is an image.
-     * Otherwise, null is returned
+     * Returns the thumbnail for the given file if it is an image and the thumbnail exists
+     * and is up-to-date. Otherwise, the thumbnail creation is scheduled and null is returned,
+     * so that the caller may fall back to the file type icon rather than wait.
      *
-     * @param file the file to create a thumbnail for
+     * @param file the file to return the thumbnail for
      * @param size the size of the thumbnail
-     * @return the thumbnail file or null if none was found or created
+     * @return the thumbnail file or null if none was found
      */
     public Path getThumbnail(final Path file, final IconSize size) {
 
-        // Check that the file exists
-        if (!Files.isRegularFile(file)) {
-            log.warn("File does not exist: " + file);
+        String type = getImageType(file);
+        if (type == null) {
             return null;
         }
 
-        final String type = fileTypes.getContentType(file);
-        if (type == null || !type.startsWith("image")) {
-            log.debug("File not an image: " + file);
-            return null;
+        Path thumbFile = getThumbnailFile(file, size);
+        if (isThumbnailCurrent(file, thumbFile)) {
+            return thumbFile;
         }
 
-        // Submit the thumbnail creation job to the process pool.
-        // Please note, this is used as a way of restricting load on the system,
-        // not per se as a way of executing the task asynchronously.
-        try {
-            return processPool.submit(() -> createThumbnail(file, type, size)).get();
-        } catch (InterruptedException | ExecutionException e) {
-            log.debug("Error creating thumbnail");
+        createThumbnail(file, type, size);
+        return null;
+    }
+
+    /**
+     * Returns the thumbnail for the given file if it is an image. If the thumbnail does not exist
+     * or is outdated, waits at most the given number of seconds for it to be created.
+     * <p>
+     * Used when the thumbnail is embedded in e.g. a PDF, where falling back to the
+     * file type icon would be permanent.
+     *
+     * @param file the file to return the thumbnail for
+     * @param size the size of the thumbnail
+     * @param waitSeconds the max number of seconds to wait for the thumbnail
+     * @return the thumbnail file or null if none was found or created in time
+     */
+    public Path getThumbnail(final Path file, final IconSize size, int waitSeconds) {
+        Path thumbFile = getThumbnail(file, size);
+        if (thumbFile == null && waitSeconds > 0) {
+            try {
+                thumbFile = createThumbnail(file, size).get(waitSeconds, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                log.debug("Thumbnail not created within " + waitSeconds + " seconds: " + file);
+            }
         }
+        return thumbFile;
+    }
 
-        return null;
+    /**
+     * Creates thumbnails of all sizes for the given file asynchronously, if it is an image.
+     * Called when e.g. a new attachment has been loaded, so that the thumbnails are ready
+     * when requested.
+     *
+     * @param file the file to create thumbnails for
+     */
+    public void createThumbnails(Path file) {
+        String type = getImageType(file);
+        if (type != null) {
+            for (IconSize size : IconSize.values()) {
+                if (!isThumbnailCurrent(file, getThumbnailFile(file, size))) {
+                    createThumbnail(file, type, size);
+                }
+            }
+        }
     }
 
     /**
-     * Returns or creates the a thumbnail for the given file if it is an image.
-     * Otherwise, null is returned
+     * Creates the thumbnail for the given file asynchronously, if it is an image.
+     *
+     * @param file the file to create a thumbnail for
+     * @param size the size of the thumbnail
+     * @return the future thumbnail file, which completes with null if no thumbnail could be created
+     */
+    public CompletableFuture<Path> createThumbnail(Path file, IconSize size) {
+        String type = getImageType(file);
+        return type == null
+                ? CompletableFuture.completedFuture(null)
+                : createThumbnail(file, type, size);
+    }
+
+    /**
+     * Schedules the creation of the thumbnail for the given file, unless the
+     * thumbnail is already being created, in which case the pending creation is returned.
      *
      * @param file the file to create a thumbnail for
      * @param type the type of image
      * @param size the size of the thumbnail
-     * @return the thumbnail file or null if none was found or created
+     * @return the future thumbnail file, which completes with null if no thumbnail could be created
      */
-    public Path createThumbnail(Path file, String type, IconSize size) {
+    private CompletableFuture<Path> createThumbnail(Path file, String type, IconSize size) {
+        Path thumbFile = getThumbnailFile(file, size);
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        CompletableFuture<Path> pending = pendingThumbnails.putIfAbsent(thumbFile, future);
+        if (pending != null) {
+            return pending;
+        }
 
-        try {
-            // Construct the thumbnail name by appending "_thumb_size" to the file name
-            String thumbName = String.format("%s_thumb_%d.%s",
-                    FilenameUtils.removeExtension(file.getFileName().toString()),
-                    size.getSize(),
-                    FilenameUtils.getExtension(file.getFileName().toString()));
-
-            // Check if the thumbnail already exists
-            Path thumbFile = file.getParent().resolve(thumbName);
-            if (Files.isRegularFile(thumbFile) &&
-                    Files.getLastModifiedTime(thumbFile).toMillis() >= Files.getLastModifiedTime(file).toMillis()) {
-                return thumbFile;
+        // Check whether to use VIPS, which creates thumbnails in batches, or java
+        Path tmpFile = thumbFile.resolveSibling("." + thumbFile.getFileName());
+        CompletableFuture<Boolean> vipsResult = vipsThumbnailer.supports(type)
+                ? vipsThumbnailer.createThumbnail(file, tmpFile, size)
+                : CompletableFuture.completedFuture(false);
+
+        vipsResult.thenAccept(vipsCreated -> {
+            try {
+                processPool.execute(() -> {
+                    try {
+                        future.complete(createThumbnail(file, thumbFile, tmpFile, vipsCreated, size));
+                    } finally {
+                        pendingThumbnails.remove(thumbFile);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pendingThumbnails.remove(thumbFile);
+                future.complete(null);
             }
+        });
+        return future;
+    }
 
-            // Check whether to use VIPS or java
-            if (StringUtils.isNotBlank(vipsCmd) &&
-                    vipsFileTypes.contains(type.toLowerCase())) {
-                // Use VIPS
-                createThumbnailUsingVips(file, thumbFile, size);
-
-            } else {
-                // Use java APIs
-                createThumbnailUsingJava(file, thumbFile, size);
-            }
+    /**
+     * Returns the content type of the file if it exists and is an image. Otherwise, null is returned
+     *
+     * @param file the file
+     * @return the image content type, or null
+     */
+    private String getImageType(Path file) {
 
-            return thumbFile;
+        // Check that the file exists
+        RepositoryMetadataCache.FileMetadata fileMetadata;
+        try {
+            fileMetadata = metadataCache.getMetadata(file);
+        } catch (IOException e) {
+            fileMetadata = null;
+        }
+        if (fileMetadata == null || fileMetadata.isDirectory()) {
+            log.warn("File does not exist: " + file);
+            return null;
+        }
 
-        } catch (Throwable e) {
-            // Alas, no thumbnail
+        String type = fileMetadata.getContentType();
+        if (type == null || !type.startsWith("image")) {
+            log.debug("File not an image: " + file);
             return null;
         }
+        return type;
     }
 
     /**
-     * Creates a thumbnail for the image file using libvips
+     * Returns the thumbnail file of the given file and size.
+     * The thumbnail name is constructed by appending "_thumb_size" to the file name
      *
-     * @param file      the image file
-     * @param thumbFile the resulting thumbnail file
-     * @param size      the size of the thumbnail
+     * @param file the file
+     * @param size the size of the thumbnail
+     * @return the thumbnail file
      */
-    private void createThumbnailUsingVips(Path file, Path thumbFile, IconSize size) throws IOException {
+    private Path getThumbnailFile(Path file, IconSize size) {
+        String thumbName = String.format("%s_thumb_%d.%s",
+                FilenameUtils.removeExtension(file.getFileName().toString()),
+                size.getSize(),
+                FilenameUtils.getExtension(file.getFileName().toString()));
+        return file.getParent().resolve(thumbName);
+    }
 
+    /**
+     * Returns if the thumbnail exists and is not older than the file
+     *
+     * @param file the file
+     * @param thumbFile the thumbnail file
+     * @return if the thumbnail exists and is up-to-date
+     */
+    private boolean isThumbnailCurrent(Path file, Path thumbFile) {
         try {
+            RepositoryMetadataCache.FileMetadata fileMetadata = metadataCache.getMetadata(file);
+            RepositoryMetadataCache.FileMetadata thumbMetadata = metadataCache.getMetadata(thumbFile);
+            return fileMetadata != null && thumbMetadata != null && !thumbMetadata.isDirectory() &&
+                    thumbMetadata.getLastModified() >= fileMetadata.getLastModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-            // Example command: vipsthumbnail -s 64 -p bilinear -o thumb.png image2.jpg
-            final Process proc = new ProcessBuilder(
-                    vipsCmd,
-                    "-s", String.valueOf(size.getSize()),
-                    "-p", "bilinear",
-                    "-o", thumbFile.toString(),
-                    file.toString())
-                    .directory(new File(System.getProperty("user.dir")))
-                    .inheritIO()
-                    .start();
-
-            BufferedReader br = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-            String line;
-            while ((line = br.readLine()) != null) {
-                log.debug(line);
+    /**
+     * Creates the thumbnail for the given image file, unless it already exists and is up-to-date.
+     * <p>
+     * The thumbnail is written to a hidden temporary file, which is then moved into place,
+     * so that the thumbnail is never served while being written.
+     *
+     * @param file the file to create a thumbnail for
+     * @param thumbFile the thumbnail file
+     * @param tmpFile the temporary thumbnail file
+     * @param vipsCreated whether vips has already created the temporary thumbnail file
+     * @param size the size of the thumbnail
+     * @return the thumbnail file or null if none was found or created
+     */
+    private Path createThumbnail(Path file, Path thumbFile, Path tmpFile, boolean vipsCreated, IconSize size) {
+
+        try {
+            // Check if the thumbnail has been created since it was requested
+            if (isThumbnailCurrent(file, thumbFile)) {
+                Files.deleteIfExists(tmpFile);
+                return thumbFile;
             }
 
-            //Wait to get exit value
-            int exitValue = proc.waitFor();
-            log.debug("Exit Value is " + exitValue);
+            // Fall back to java APIs if vips was not used or failed
+            if (!vipsCreated) {
+                createThumbnailUsingJava(file, tmpFile, size);
+            }
+            Files.move(tmpFile, thumbFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            metadataCache.invalidate(thumbFile);
 
-            // Update the timestamp of the thumbnail file to match the change date of the image file
-            Files.setLastModifiedTime(thumbFile, Files.getLastModifiedTime(file));
+            return thumbFile;
 
-        } catch (IOException | InterruptedException e) {
-            log.error("Error creating thumbnail for image " + file, e);
-            throw new IOException(e);
+        } catch (Throwable e) {
+            // Alas, no thumbnail
+            try {
+                Files.deleteIfExists(tmpFile);
+            } catch (IOException ignored) {
+            }
+            return null;
         }
     }
 
@@ -221,31 +327,13 @@ public class ThumbnailService {
     private void createThumbnailUsingJava(Path file, Path thumbFile, IconSize size) throws IOException {
 
         try {
-            BufferedImage image = ImageIO.read(file.toFile());
-
-            int w = image.getWidth();
-            int h = image.getHeight();
+            BufferedImage thumbImage = readScaledImage(file, size.getSize());
 
             // Never scale up
-            if (w <= size.getSize() && h <= size.getSize()) {
+            if (thumbImage == null) {
                 FileUtils.copyFile(file.toFile(), thumbFile.toFile());
 
             } else {
-                // Compute the scale factor
-                double dx = (double)size.getSize() / (double)w;
-                double dy = (double)size.getSize() / (double)h;
-                double d = Math.min(dx, dy);
-
-                // Create the thumbnail
-                BufferedImage thumbImage = new BufferedImage(
-                        (int)Math.round(w * d),
-                        (int)Math.round(h * d),
-                        BufferedImage.TYPE_INT_RGB);
-                Graphics2D g2d = thumbImage.createGraphics();
-                AffineTransform at = AffineTransform.getScaleInstance(d, d);
-                g2d.drawRenderedImage(image, at);
-                g2d.dispose();
-
                 // Save the thumbnail
                 String fileName = thumbFile.getFileName().toString();
                 ImageIO.write(
@@ -253,8 +341,7 @@ public class ThumbnailService {
                         FilenameUtils.getExtension(fileName),
                         thumbFile.toFile());
 
-                // Releas resources
-                image.flush();
+                // Release resources
                 thumbImage.flush();
             }
 
@@ -266,4 +353,83 @@ public class ThumbnailService {
             throw new IOException(e);
         }
     }
+
+    /**
+     * Reads the image file scaled down to fit within the given size.
+     * <p>
+     * Rather than decoding the full-resolution image, only every n'th pixel of every n'th row is
+     * decoded, such that the decoded image is no less than twice the requested size. The decoded
+     * image is then scaled down to the requested size using bilinear interpolation.
+     *
+     * @param file the image file
+     * @param size the max width and height of the scaled image
+     * @return the scaled image, or null if the image already fits within the size
+     */
+    public static BufferedImage readScaledImage(Path file, int size) throws IOException {
+
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            Iterator<ImageReader> readers = (in == null) ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image format " + file);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+
+                // The image dimensions are read from the header without decoding the image
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+                if (w <= size && h <= size) {
+                    return null;
+                }
+
+                // Compute the scale factor and the source subsampling
+                double d = Math.min((double)size / (double)w, (double)size / (double)h);
+                int subsampling = Math.max(1, (int)(0.5 / d));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage image = reader.read(0, param);
+
+                return scaleImage(
+                        image,
+                        Math.max(1, (int)Math.round(w * d)),
+                        Math.max(1, (int)Math.round(h * d)));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scales down the image to the given dimensions using bilinear interpolation.
+     * The image is halved in steps, since bilinear interpolation by a factor of
+     * more than two skips source pixels.
+     *
+     * @param image the image to scale down
+     * @param width the resulting width
+     * @param height the resulting height
+     * @return the scaled image
+     */
+    static BufferedImage scaleImage(BufferedImage image, int width, int height) {
+        BufferedImage result = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        do {
+            w = Math.max(width, w / 2);
+            h = Math.max(height, h / 2);
+
+            BufferedImage scaledImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = scaledImage.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2d.drawImage(result, 0, 0, w, h, null);
+            g2d.dispose();
+
+            result.flush();
+            result = scaledImage;
+        } while (w != width || h != height);
+        return result;
+    }
 }
@@ -0,0 +1,318 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common.repo;
+
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates thumbnails using the libvips "vipsthumbnail" command, defined by the "vipsPath" setting.
+ * <p>
+ * Starting a vips process and initializing the library dominates the time it takes to create
+ * a thumbnail of a small image. Hence, thumbnail jobs are queued and handled by a worker thread,
+ * which creates the thumbnails of up to "vipsBatchSize" images with the same size and
+ * output file name pattern in a single vips invocation.
+ * <p>
+ * vips processes that do not complete within "vipsTimeoutSeconds" are killed. If a vips process
+ * cannot be started or is killed, vips is not used for "vipsBackoffSeconds", and the
+ * {@link ThumbnailService} falls back to creating thumbnails using plain java.
+ */
+@ApplicationScoped
+public class VipsThumbnailer {
+
+    /** Image types supported by vips (avoid gif) */
+    static final Set<String> VIPS_FILE_TYPES = new HashSet<>(Arrays.asList(
+            "image/bmp", "image/jpeg", "image/jpg", "image/tiff", "image/tif", "image/png"));
+
+    @Inject
+    Logger log;
+
+    @Inject
+    @Setting(value = "vipsPath")
+    String vipsCmd;
+
+    @Inject
+    @Setting(value = "vipsBatchSize", defaultValue = "32")
+    Long batchSize;
+
+    @Inject
+    @Setting(value = "vipsBatchDelayMs", defaultValue = "50")
+    Long batchDelayMs;
+
+    @Inject
+    @Setting(value = "vipsTimeoutSeconds", defaultValue = "60")
+    Long timeoutSeconds;
+
+    @Inject
+    @Setting(value = "vipsBackoffSeconds", defaultValue = "300")
+    Long backoffSeconds;
+
+    private final BlockingQueue<ThumbnailJob> queue = new LinkedBlockingQueue<>();
+    private volatile boolean running;
+    private volatile long disabledUntil;
+    private Thread worker;
+
+    /**
+     * Starts the worker thread if vips is configured
+     */
+    @PostConstruct
+    private void init() {
+        running = StringUtils.isNotBlank(vipsCmd);
+        if (running) {
+            startWorker();
+        }
+    }
+
+    /**
+     * Stops the worker thread
+     */
+    @PreDestroy
+    private void closeDown() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+        List<ThumbnailJob> jobs = new ArrayList<>();
+        queue.drainTo(jobs);
+        jobs.forEach(job -> job.result.complete(false));
+    }
+
+    /**
+     * Returns if vips is configured and currently available for the given image type
+     *
+     * @param type the image type
+     * @return if vips can be used to create a thumbnail
+     */
+    public boolean supports(String type) {
+        return running &&
+                System.currentTimeMillis() >= disabledUntil &&
+                type != null &&
+                VIPS_FILE_TYPES.contains(type.toLowerCase());
+    }
+
+    /**
+     * Queues the creation of a thumbnail for the given image file.
+     * <p>
+     * The thumbnail file must reside in the folder of the image file, and its name must contain
+     * the base name of the image file, e.g. ".image_thumb_64.jpg" for "image.jpg".
+     *
+     * @param file the image file
+     * @param thumbFile the resulting thumbnail file
+     * @param size the size of the thumbnail
+     * @return the future result, which is true if the thumbnail was created and false otherwise
+     */
+    public CompletableFuture<Boolean> createThumbnail(Path file, Path thumbFile, IconSize size) {
+        String baseName = FilenameUtils.removeExtension(file.getFileName().toString());
+        String thumbName = thumbFile.getFileName().toString();
+        int index = thumbName.indexOf(baseName);
+        if (!running || index < 0 || !file.getParent().equals(thumbFile.getParent())) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        // vips substitutes "%s" in the output file name pattern with the base name of the image file
+        ThumbnailJob job = new ThumbnailJob(
+                file,
+                thumbFile,
+                size,
+                thumbName.substring(0, index) + "%s" + thumbName.substring(index + baseName.length()));
+
+        ensureWorkerRunning();
+        queue.add(job);
+        return job.result;
+    }
+
+    /**
+     * Restarts the worker thread if it has died
+     */
+    private synchronized void ensureWorkerRunning() {
+        if (running && (worker == null || !worker.isAlive())) {
+            if (worker != null) {
+                log.warn("Restarting vips thumbnail worker");
+            }
+            startWorker();
+        }
+    }
+
+    /**
+     * Starts the worker thread
+     */
+    private synchronized void startWorker() {
+        worker = new Thread(this::processJobs, "vips-thumbnailer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Runs in the worker thread and processes the queued thumbnail jobs in batches
+     */
+    private void processJobs() {
+        while (running) {
+            List<ThumbnailJob> jobs = new ArrayList<>();
+            try {
+                jobs.add(queue.take());
+
+                // Wait briefly for more jobs, e.g. the other sizes of the same image
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchDelayMs);
+                while (jobs.size() < batchSize * IconSize.values().length) {
+                    ThumbnailJob job = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (job == null) {
+                        break;
+                    }
+                    jobs.add(job);
+                }
+
+                // Create the thumbnails of each size and output file name pattern in batches
+                Map<String, List<ThumbnailJob>> batches = new LinkedHashMap<>();
+                for (ThumbnailJob job : jobs) {
+                    String key = job.size.getSize() + job.outputPattern;
+                    List<ThumbnailJob> batch = batches.computeIfAbsent(key, k -> new ArrayList<>());
+                    batch.add(job);
+                    if (batch.size() >= batchSize) {
+                        createThumbnails(batches.remove(key));
+                    }
+                }
+                for (List<ThumbnailJob> batch : batches.values()) {
+                    createThumbnails(batch);
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } catch (Throwable e) {
+                log.error("Error creating vips thumbnails", e);
+            } finally {
+                // Never leave callers waiting for jobs that were not processed
+                jobs.forEach(job -> job.result.complete(false));
+            }
+        }
+    }
+
+    /**
+     * Creates the thumbnails of the given jobs in a single vips invocation.
+     * All jobs must have the same size and output file name pattern.
+     *
+     * @param batch the thumbnail jobs
+     */
+    private void createThumbnails(List<ThumbnailJob> batch) throws InterruptedException {
+        long t0 = System.currentTimeMillis();
+        ThumbnailJob first = batch.get(0);
+
+        // Example command: vipsthumbnail -s 64 -p bilinear -o %s_thumb_64.jpg image1.jpg image2.jpg
+        List<String> cmd = new ArrayList<>(Arrays.asList(
+                vipsCmd,
+                "-s", String.valueOf(first.size.getSize()),
+                "-p", "bilinear",
+                "-o", first.outputPattern));
+        for (ThumbnailJob job : batch) {
+            cmd.add(job.file.toString());
+            try {
+                Files.deleteIfExists(job.thumbFile);
+            } catch (IOException ignored) {
+            }
+        }
+
+        try {
+            Process proc = new ProcessBuilder(cmd)
+                    .directory(new File(System.getProperty("user.dir")))
+                    .inheritIO()
+                    .start();
+
+            try {
+                if (!proc.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                    proc.destroyForcibly();
+                    disableTemporarily("vips timed out creating " + batch.size() + " thumbnails");
+                } else {
+                    log.debug("Exit Value is " + proc.exitValue());
+                }
+            } catch (InterruptedException e) {
+                proc.destroyForcibly();
+                throw e;
+            }
+        } catch (IOException e) {
+            disableTemporarily("Error starting vips: " + e);
+        }
+
+        // vips skips images it cannot process, so check the thumbnails individually
+        int created = 0;
+        for (ThumbnailJob job : batch) {
+            try {
+                if (Files.exists(job.thumbFile)) {
+                    // Update the timestamp of the thumbnail file to match the change date of the image file
+                    Files.setLastModifiedTime(job.thumbFile, Files.getLastModifiedTime(job.file));
+                    job.result.complete(true);
+                    created++;
+                    continue;
+                }
+            } catch (IOException e) {
+                log.debug("Error updating thumbnail " + job.thumbFile + ": " + e);
+            }
+            job.result.complete(false);
+        }
+        log.debug(String.format("Created %d/%d vips thumbnails in %d ms",
+                created, batch.size(), System.currentTimeMillis() - t0));
+    }
+
+    /**
+     * Falls back to creating thumbnails using plain java for a while
+     *
+     * @param reason the reason for not using vips
+     */
+    private void disableTemporarily(String reason) {
+        log.error(reason + ". Disabling vips for " + backoffSeconds + " seconds");
+        disabledUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(backoffSeconds);
+    }
+
+    /**
+     * A queued thumbnail job
+     */
+    private static class ThumbnailJob {
+        final Path file;
+        final Path thumbFile;
+        final IconSize size;
+        final String outputPattern;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        ThumbnailJob(Path file, Path thumbFile, IconSize size, String outputPattern) {
+            this.file = file;
+            this.thumbFile = thumbFile;
+            this.size = size;
+            this.outputPattern = outputPattern;
+        }
+    }
+}
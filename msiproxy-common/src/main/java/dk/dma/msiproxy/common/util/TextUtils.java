@@ -19,6 +19,7 @@ import org.apache.commons.lang.StringUtils;
 import org.jsoup.Jsoup;
 import org.jsoup.examples.HtmlToPlainText;
 import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Entities;
 
 /**
  * Text utility methods
@@ -40,6 +41,28 @@ public class TextUtils {
         }
     }
 
+    /**
+     * Converts the html fragment to well-formed XHTML, which can be embedded
+     * in XHTML documents and parsed without an HTML clean-up pass
+     * @param html the html
+     * @return the XHTML version
+     */
+    public static String html2xhtml(String html) {
+        if (StringUtils.isBlank(html)) {
+            return html;
+        }
+        try {
+            Document doc = Jsoup.parseBodyFragment(html);
+            doc.outputSettings()
+                    .escapeMode(Entities.EscapeMode.xhtml)
+                    .prettyPrint(false);
+            return doc.body().html();
+        } catch (Exception e) {
+            // If any error occurs, return the escaped html
+            return txt2html(html);
+        }
+    }
+
     /**
      * Converts the text from plain text to html
      * @param text the text
@@ -48,7 +71,7 @@ public class TextUtils {
     public static String txt2html(String text) {
         text = StringUtils.replaceEach(text,
                 new String[]{"&", "\"", "<", ">", "\n", "\t"},
-                new String[]{"&amp;", "&quot;", "&lt;", "&gt;", "<br>", "&nbsp;&nbsp;&nbsp;"});
+                new String[]{"&amp;", "&quot;", "&lt;", "&gt;", "<br />", "&#160;&#160;&#160;"});
         return text;
     }
 
@@ -15,10 +15,18 @@
  */
 package dk.dma.msiproxy.common.util;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Web-related utility functions
@@ -55,6 +63,178 @@ public class WebUtils {
         return response;
     }
 
+    /**
+     * Add headers to the response to allow for caching and validating a resource
+     * with the given ETag and last-modified time
+     * @param response the response
+     * @param seconds the number of seconds to cache the response
+     * @param etag the ETag of the resource, including quotes
+     * @param lastModified the last-modified time of the resource
+     * @return the response
+     */
+    public static HttpServletResponse cache(HttpServletResponse response, int seconds, String etag, long lastModified) {
+        response.setHeader("Cache-Control", "max-age=" + seconds);
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        return response;
+    }
+
+    /**
+     * Add headers to the response to require revalidation of a resource
+     * with the given ETag before each use
+     * @param response the response
+     * @param etag the ETag of the resource, including quotes
+     * @return the response
+     */
+    public static HttpServletResponse revalidate(HttpServletResponse response, String etag) {
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("ETag", etag);
+        return response;
+    }
+
+    /**
+     * Returns if the If-None-Match request header indicates that the client has a current
+     * copy of the resource with the given ETag
+     * @param request the request
+     * @param etag the ETag of the resource, including quotes
+     * @return if the resource is unchanged
+     */
+    public static boolean isNotModified(HttpServletRequest request, String etag) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        return ifNoneMatch != null && ("*".equals(ifNoneMatch.trim()) || ifNoneMatch.contains(etag));
+    }
+
+    /**
+     * Returns if the conditional request headers indicate that the client has a current
+     * copy of the resource with the given ETag and last-modified time.
+     * If-None-Match takes precedence over If-Modified-Since.
+     * @param request the request
+     * @param etag the ETag of the resource, including quotes
+     * @param lastModified the last-modified time of the resource
+     * @return if the resource is unchanged
+     */
+    public static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return "*".equals(ifNoneMatch.trim()) || ifNoneMatch.contains(etag);
+        }
+        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        // HTTP dates have a resolution of seconds
+        return ifModifiedSince != -1 && ifModifiedSince >= lastModified / 1000L * 1000L;
+    }
+
+    /**
+     * Streams the file to the response. A single byte range requested using the "Range" header
+     * is honoured. Multiple or malformed ranges, and ranges that fail the "If-Range" condition,
+     * result in the full file being streamed.
+     * @param request the request
+     * @param response the response
+     * @param file the file to stream
+     * @param etag the ETag of the file, including quotes
+     */
+    public static void streamFile(HttpServletRequest request, HttpServletResponse response, Path file, String etag) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteRange byteRange = getByteRange(request.getHeader("Range"), request.getHeader("If-Range"), etag, channel.size());
+            response.setHeader("Accept-Ranges", "bytes");
+            if (!byteRange.isSatisfiable()) {
+                response.setHeader("Content-Range", byteRange.getContentRange());
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            } else if (byteRange.isPartial()) {
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", byteRange.getContentRange());
+            }
+
+            response.setContentLengthLong(byteRange.getLength());
+            transferTo(channel, byteRange.getStart(), byteRange.getLength(), response.getOutputStream());
+        }
+    }
+
+    /**
+     * Returns the byte range of a resource with the given size and ETag to stream, as requested
+     * by the "Range" and "If-Range" headers. Multiple or malformed ranges, and ranges that fail
+     * the "If-Range" condition, result in the full resource.
+     * @param range the "Range" header value, or null if undefined
+     * @param ifRange the "If-Range" header value, or null if undefined
+     * @param etag the ETag of the resource, including quotes
+     * @param size the size of the resource
+     * @return the byte range to stream
+     */
+    public static ByteRange getByteRange(String range, String ifRange, String etag, long size) {
+        long[] byteRange = (range != null && (ifRange == null || ifRange.equals(etag)))
+                ? parseRange(range, size)
+                : new long[0];
+        if (byteRange == null) {
+            return new ByteRange(-1L, -1L, size, false);
+        } else if (byteRange.length == 2) {
+            return new ByteRange(byteRange[0], byteRange[1], size, true);
+        }
+        return new ByteRange(0L, size - 1L, size, false);
+    }
+
+    /**
+     * Transfers the given byte range of the file channel to the output stream.
+     * Uses {@code FileChannel.transferTo()}, which avoids copying the data via
+     * user space buffers where supported by the platform and output stream.
+     * @param channel the file channel
+     * @param start the position of the first byte to transfer
+     * @param length the number of bytes to transfer
+     * @param out the output stream
+     */
+    public static void transferTo(FileChannel channel, long start, long length, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long position = start;
+        long end = start + length;
+        while (position < end) {
+            long count = channel.transferTo(position, end - position, target);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Parses the value of a "Range" header for a resource with the given size
+     * @param range the "Range" header value
+     * @param size the size of the resource
+     * @return the first and last byte position, an empty array if the range should be ignored,
+     *         or null if the range is not satisfiable
+     */
+    public static long[] parseRange(String range, long size) {
+        range = range.trim();
+        if (!range.startsWith("bytes=") || range.contains(",")) {
+            return new long[0];
+        }
+        String[] positions = range.substring("bytes=".length()).split("-", -1);
+        if (positions.length != 2) {
+            return new long[0];
+        }
+        try {
+            String first = positions[0].trim();
+            String last = positions[1].trim();
+            long start, end;
+            if (first.isEmpty()) {
+                // Suffix range, i.e. the last N bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0L, size - suffix);
+                end = size - 1L;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (end < start) {
+                    return new long[0];
+                }
+                end = Math.min(end, size - 1L);
+            }
+            return start < size ? new long[] { start, end } : null;
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
 
     /**
      * Returns a non-exception casting version of URLEncode.encode() in UTF-8
@@ -128,4 +308,53 @@ public class WebUtils {
         response.setStatus(HttpServletResponse.SC_MOVED_PERMANENTLY);
         response.setHeader("Location", url);
     }
+
+    /**
+     * A byte range of a resource to stream
+     */
+    public static class ByteRange {
+        final long start;
+        final long end;
+        final long size;
+        final boolean partial;
+
+        ByteRange(long start, long end, long size, boolean partial) {
+            this.start = start;
+            this.end = end;
+            this.size = size;
+            this.partial = partial;
+        }
+
+        /** Returns the position of the first byte */
+        public long getStart() {
+            return start;
+        }
+
+        /** Returns the position of the last byte */
+        public long getEnd() {
+            return end;
+        }
+
+        /** Returns the number of bytes in the range */
+        public long getLength() {
+            return end - start + 1L;
+        }
+
+        /** Returns if the range is satisfiable, i.e. the response is not a 416 */
+        public boolean isSatisfiable() {
+            return start >= 0L;
+        }
+
+        /** Returns if the range was requested by the client, i.e. the response is a 206 */
+        public boolean isPartial() {
+            return partial;
+        }
+
+        /** Returns the value of the "Content-Range" header for a 206 or 416 response */
+        public String getContentRange() {
+            return isSatisfiable()
+                    ? "bytes " + start + "-" + end + "/" + size
+                    : "bytes */" + size;
+        }
+    }
 }
@@ -0,0 +1,108 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common;
+
+import dk.dma.msiproxy.common.repo.FileTypes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.activation.MimetypesFileTypeMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of resolving the content type of a file by instantiating a
+ * {@code MimetypesFileTypeMap} per call, as previously done by {@link FileTypes},
+ * with the cost of the pre-loaded look-up table and, for unknown file extensions,
+ * content sniffing.
+ * <p>
+ * Run using the main method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileTypesBenchmark {
+
+    FileTypes fileTypes;
+    Path tmpDir;
+    Path jpegFile;
+    Path unknownFile;
+
+    @Setup
+    public void setup() throws Exception {
+        // Call the package-private @PostConstruct method, as the container would
+        fileTypes = new FileTypes();
+        Method init = FileTypes.class.getDeclaredMethod("init");
+        init.setAccessible(true);
+        init.invoke(fileTypes);
+
+        tmpDir = Files.createTempDirectory("filetypes");
+        jpegFile = tmpDir.resolve("tycho-brahe-stjerneborg.jpg");
+        unknownFile = tmpDir.resolve("tycho-brahe-stjerneborg.img");
+        try (InputStream in = getClass().getResourceAsStream("/tycho-brahe-stjerneborg.jpg")) {
+            Files.copy(in, jpegFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.copy(jpegFile, unknownFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(jpegFile);
+        Files.deleteIfExists(unknownFile);
+        Files.deleteIfExists(tmpDir);
+    }
+
+    @Benchmark
+    public String mimetypesFileTypeMap() {
+        return new MimetypesFileTypeMap().getContentType(jpegFile.toFile());
+    }
+
+    @Benchmark
+    public String lookupTable() {
+        return fileTypes.getContentType(jpegFile);
+    }
+
+    @Benchmark
+    public String contentSniffing() {
+        return fileTypes.getContentType(unknownFile);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FileTypesBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
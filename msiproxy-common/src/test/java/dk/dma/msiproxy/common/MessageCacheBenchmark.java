@@ -0,0 +1,105 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.util.concurrent.IsolationLevel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of looking up a filtered message list in the Infinispan
+ * message cache with the cost of looking it up in the in-process L1 map.
+ * <p>
+ * The Infinispan cache is configured as in {@code MessageCache}.
+ * Run using the main method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class MessageCacheBenchmark {
+
+    static final String KEY = "dkmsi_1420070400000_da_true_MSI__12_";
+
+    DefaultCacheManager cacheManager;
+    Cache<String, List<Object>> cache;
+    Map<String, List<Object>> l1Cache = new ConcurrentHashMap<>();
+
+    @Setup
+    public void setup() {
+        cacheManager = new DefaultCacheManager(
+                new GlobalConfigurationBuilder().nonClusteredDefault().build(),
+                new ConfigurationBuilder()
+                        .clustering().cacheMode(CacheMode.LOCAL)
+                        .locking().isolationLevel(IsolationLevel.REPEATABLE_READ)
+                        .eviction().maxEntries(20000).strategy(EvictionStrategy.LRU)
+                        .expiration().lifespan(30 * 60 * 1000)
+                        .build(),
+                true);
+        cache = cacheManager.getCache("dkmsi");
+        cache.put(KEY, new ArrayList<>());
+        l1Cache.put(KEY, new ArrayList<>());
+    }
+
+    @TearDown
+    public void tearDown() {
+        cacheManager.stop();
+    }
+
+    @Benchmark
+    public List<Object> infinispanLookup() {
+        return cache.get(KEY);
+    }
+
+    @Benchmark
+    public List<Object> l1Lookup() {
+        return l1Cache.get(KEY);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MessageCacheBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,190 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common;
+
+import dk.dma.msiproxy.common.provider.AbstractProviderService;
+import dk.dma.msiproxy.common.provider.MessageCache;
+import dk.dma.msiproxy.common.repo.RepositoryService;
+import dk.dma.msiproxy.model.msi.Message;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Tests the clustered message cache, using two cache containers on the loopback interface
+ */
+public class MessageCacheClusterTest {
+
+    static final long WAIT_MS = 20000L;
+
+    MessageCache loadingCache, followerCache;
+
+    @Before
+    public void setup() throws Exception {
+        // The JBoss Marshalling version used by Infinispan 5.1 does not support later Java versions
+        Assume.assumeTrue("Clustering requires Java 8", "1.8".equals(System.getProperty("java.specification.version")));
+
+        String clusterName = "msiproxy-test-" + UUID.randomUUID();
+        loadingCache = createClusteredCache(clusterName);
+        followerCache = createClusteredCache(clusterName);
+    }
+
+    @After
+    public void tearDown() {
+        if (followerCache != null) {
+            followerCache.destroy();
+        }
+        if (loadingCache != null) {
+            loadingCache.destroy();
+        }
+    }
+
+    @Test
+    public void snapshotReplicationTest() throws Exception {
+
+        // The first node to join is the coordinator, and thus the elected loading node
+        Assert.assertTrue(loadingCache.isLoadingNode());
+        Assert.assertTrue(waitFor(() -> !followerCache.isLoadingNode()));
+
+        TestProviderService loadingNode = new TestProviderService(loadingCache);
+        TestProviderService followerNode = new TestProviderService(followerCache);
+
+        // The first snapshot creates the cache entry
+        loadingNode.setActiveMessages(createMessages(1, 2));
+        Assert.assertTrue("Created snapshot not applied",
+                waitFor(() -> getIds(followerNode).equals(Arrays.asList(1, 2))));
+
+        // Subsequent snapshots modify the cache entry
+        loadingNode.setActiveMessages(createMessages(2, 3, 4));
+        Assert.assertTrue("Modified snapshot not applied",
+                waitFor(() -> getIds(followerNode).equals(Arrays.asList(2, 3, 4))));
+
+        // The follower reads the same snapshot from the replicated cache
+        Assert.assertEquals(
+                loadingCache.getSnapshot("test").getFetchTime(),
+                followerCache.getSnapshot("test").getFetchTime());
+    }
+
+    /** Creates a clustered message cache, which joins the cluster with the given name */
+    private static MessageCache createClusteredCache(String clusterName) throws Exception {
+        MessageCache cache = new MessageCache();
+        setField(cache, "log", LoggerFactory.getLogger(MessageCache.class));
+        setField(cache, "clustered", true);
+        setField(cache, "clusterName", clusterName);
+        setField(cache, "jgroupsConfig", "jgroups-loopback.xml");
+        setField(cache, "payloadMaxMB", 1L);
+        Method init = MessageCache.class.getDeclaredMethod("init");
+        init.setAccessible(true);
+        init.invoke(cache);
+        return cache;
+    }
+
+    /** Creates messages with the given ID's */
+    private static List<Message> createMessages(Integer... ids) {
+        return Arrays.stream(ids)
+                .map(id -> {
+                    Message msg = new Message();
+                    msg.setId(id);
+                    msg.setUpdated(new Date(1000L * id));
+                    return msg;
+                })
+                .collect(Collectors.toList());
+    }
+
+    /** Returns the ID's of the active messages of the provider */
+    private static List<Integer> getIds(AbstractProviderService providerService) {
+        return providerService.getActiveMessages().stream()
+                .map(Message::getId)
+                .collect(Collectors.toList());
+    }
+
+    /** Polls the condition until it holds or the wait time has elapsed */
+    private static boolean waitFor(java.util.concurrent.Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    /** Sets the value of a package-private field, as the container would */
+    private static void setField(Object bean, String name, Object value) throws Exception {
+        Field field = bean.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(bean, value);
+    }
+
+    /**
+     * A provider service, which applies the snapshots published by the loading node
+     */
+    static class TestProviderService extends AbstractProviderService {
+        final MessageCache messageCache;
+
+        TestProviderService(MessageCache messageCache) {
+            this.messageCache = messageCache;
+            messageCache.registerSnapshotListener(getProviderId(), this::applySnapshot);
+        }
+
+        @Override
+        public String getProviderId() {
+            return "test";
+        }
+
+        @Override
+        public int getPriority() {
+            return 0;
+        }
+
+        @Override
+        public String[] getLanguages() {
+            return new String[] { "en" };
+        }
+
+        @Override
+        public MessageCache getMessageCache() {
+            return messageCache;
+        }
+
+        @Override
+        public RepositoryService getRepositoryService() {
+            return null;
+        }
+
+        @Override
+        public List<Message> loadMessages() {
+            return getActiveMessages();
+        }
+
+        @Override
+        public synchronized void setActiveMessages(List<Message> messages) {
+            super.setActiveMessages(messages);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common;
+
+import dk.dma.msiproxy.common.provider.OffHeapByteStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Unit tests for the OffHeapByteStore
+ */
+public class OffHeapByteStoreTest {
+
+    @Test
+    public void offHeapByteStoreTest() {
+
+        OffHeapByteStore store = new OffHeapByteStore(10);
+
+        // Payloads are stored off-heap and returned as independent read-only views
+        ByteBuffer payload = store.put("a", new byte[] { 1, 2, 3, 4 });
+        Assert.assertTrue(payload.isReadOnly());
+        Assert.assertEquals(4, payload.remaining());
+        Assert.assertEquals(4, store.get("a").remaining());
+        Assert.assertEquals(3, store.get("a").get(2));
+        Assert.assertEquals(4, store.getSize());
+
+        // Replacing a payload updates the size
+        store.put("a", new byte[] { 1, 2 });
+        Assert.assertEquals(2, store.getSize());
+
+        // The least recently used payloads are evicted first
+        store.put("b", new byte[4]);
+        store.get("a");
+        store.put("c", new byte[6]);
+        Assert.assertNotNull(store.get("a"));
+        Assert.assertNull(store.get("b"));
+        Assert.assertNotNull(store.get("c"));
+        Assert.assertEquals(8, store.getSize());
+
+        // Payloads exceeding the maximum size are not stored
+        payload = store.put("d", new byte[11]);
+        Assert.assertEquals(11, payload.remaining());
+        Assert.assertNull(store.get("d"));
+        Assert.assertEquals(2, store.getEntryCount());
+    }
+
+}
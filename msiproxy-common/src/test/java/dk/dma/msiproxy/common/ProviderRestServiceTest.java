@@ -0,0 +1,259 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMember;
+import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
+import dk.dma.msiproxy.common.provider.AbstractProviderService;
+import dk.dma.msiproxy.common.provider.MessageCache;
+import dk.dma.msiproxy.common.provider.OffHeapByteStore;
+import dk.dma.msiproxy.common.provider.ProviderRestService;
+import dk.dma.msiproxy.common.provider.Providers;
+import dk.dma.msiproxy.common.repo.RepositoryService;
+import dk.dma.msiproxy.model.MessageFilter;
+import dk.dma.msiproxy.model.msi.Area;
+import dk.dma.msiproxy.model.msi.Message;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Variant;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.xml.bind.annotation.XmlTransient;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Unit tests for the ProviderRestService
+ */
+public class ProviderRestServiceTest {
+
+    @Test
+    public void cachedPayloadTest() throws Exception {
+
+        Area parent = new Area();
+        parent.setId(1);
+        Area area = new Area();
+        area.setId(2);
+        area.setParent(parent);
+        area.setSortOrder(3.0);
+        parent.setChildren(Collections.singletonList(area));
+
+        Message message = new Message();
+        message.setId(10);
+        message.setUpdated(new Date(1000L));
+        message.setArea(area);
+        List<Message> messages = Collections.singletonList(message);
+
+        ResteasyProviderFactory providerFactory = new ResteasyProviderFactory();
+        providerFactory.registerProviderInstance(new JaxbJsonWriter());
+
+        OffHeapByteStore payloadStore = new OffHeapByteStore(1024 * 1024);
+        MessageCache messageCache = new MessageCache();
+        setField(messageCache, "payloadStore", payloadStore);
+
+        ProviderRestService service = new ProviderRestService();
+        setField(service, "log", LoggerFactory.getLogger(ProviderRestService.class));
+        setField(service, "providers", new TestProviders(new TestProviderService(messages)));
+        setField(service, "messageCache", messageCache);
+        setField(service, "request", new NoPreconditionsRequest());
+        setField(service, "jaxrsProviders", providerFactory);
+
+        // The response a JAX-RS runtime would write for the uncached message list
+        GenericEntity<List<Message>> entity = new GenericEntity<List<Message>>(messages) {
+        };
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new JaxbJsonWriter().writeTo(entity.getEntity(), entity.getRawType(), entity.getType(),
+                new Annotation[0], MediaType.APPLICATION_JSON_TYPE, new MultivaluedHashMap<>(), expected);
+
+        // Both the cache miss and the cache hit must return the same bytes
+        byte[] miss = getJsonMessages(service);
+        byte[] hit = getJsonMessages(service);
+        Assert.assertArrayEquals(expected.toByteArray(), miss);
+        Assert.assertArrayEquals(expected.toByteArray(), hit);
+        Assert.assertEquals(1, payloadStore.getEntryCount());
+
+        // JAXB transient properties must not leak into the cached payload
+        String json = new String(hit, StandardCharsets.UTF_8);
+        Assert.assertTrue(json.contains("\"id\":10"));
+        Assert.assertFalse(json.contains("sortOrder"));
+        Assert.assertFalse(json.contains("children"));
+    }
+
+    /** Returns the serialized JSON message list */
+    private byte[] getJsonMessages(ProviderRestService service) throws Exception {
+        Response response = service.getActiveMessages("test", false, "json", "en", true, null, null, null);
+        Assert.assertEquals(200, response.getStatus());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+        return out.toByteArray();
+    }
+
+    /** Sets the value of a package-private field, as the container would */
+    private static void setField(Object bean, String name, Object value) throws Exception {
+        Field field = bean.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(bean, value);
+    }
+
+    /**
+     * A JSON writer that, like the JAX-RS runtime JSON provider, honours JAXB annotations
+     */
+    @Produces(MediaType.APPLICATION_JSON)
+    public static class JaxbJsonWriter implements MessageBodyWriter<Object> {
+
+        final ObjectMapper mapper = new ObjectMapper()
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .setAnnotationIntrospector(new JacksonAnnotationIntrospector() {
+                    @Override
+                    public boolean hasIgnoreMarker(AnnotatedMember m) {
+                        return m.hasAnnotation(XmlTransient.class) || super.hasIgnoreMarker(m);
+                    }
+                });
+
+        @Override
+        public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+            return true;
+        }
+
+        @Override
+        public long getSize(Object o, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(Object o, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                            MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws java.io.IOException {
+            mapper.writeValue(entityStream, o);
+        }
+    }
+
+    /** Returns the test provider for any provider ID */
+    static class TestProviders extends Providers {
+        final AbstractProviderService providerService;
+
+        TestProviders(AbstractProviderService providerService) {
+            this.providerService = providerService;
+        }
+
+        @Override
+        public List<AbstractProviderService> getProviders(String providerIds) {
+            return Collections.singletonList(providerService);
+        }
+    }
+
+    /** A provider service returning a fixed message list */
+    static class TestProviderService extends AbstractProviderService {
+        final List<Message> messages;
+
+        TestProviderService(List<Message> messages) {
+            this.messages = messages;
+        }
+
+        @Override
+        public String getProviderId() {
+            return "test";
+        }
+
+        @Override
+        public int getPriority() {
+            return 0;
+        }
+
+        @Override
+        public String[] getLanguages() {
+            return new String[] { "en" };
+        }
+
+        @Override
+        public MessageCache getMessageCache() {
+            return null;
+        }
+
+        @Override
+        public RepositoryService getRepositoryService() {
+            return null;
+        }
+
+        @Override
+        public List<Message> loadMessages() {
+            return messages;
+        }
+
+        @Override
+        public List<Message> getCachedMessages(MessageFilter filter) {
+            return messages;
+        }
+
+        @Override
+        public String getETagToken(String format, MessageFilter filter, List<Message> messages) {
+            return format + "_" + messages.size();
+        }
+    }
+
+    /** A request that never matches the preconditions */
+    static class NoPreconditionsRequest implements Request {
+
+        @Override
+        public String getMethod() {
+            return "GET";
+        }
+
+        @Override
+        public Variant selectVariant(List<Variant> variants) {
+            return null;
+        }
+
+        @Override
+        public Response.ResponseBuilder evaluatePreconditions(EntityTag eTag) {
+            return null;
+        }
+
+        @Override
+        public Response.ResponseBuilder evaluatePreconditions(Date lastModified) {
+            return null;
+        }
+
+        @Override
+        public Response.ResponseBuilder evaluatePreconditions(Date lastModified, EntityTag eTag) {
+            return null;
+        }
+
+        @Override
+        public Response.ResponseBuilder evaluatePreconditions() {
+            return null;
+        }
+    }
+}
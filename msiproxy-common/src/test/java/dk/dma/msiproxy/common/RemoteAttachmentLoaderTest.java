@@ -0,0 +1,387 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import dk.dma.msiproxy.common.http.UpstreamHttpClient;
+import dk.dma.msiproxy.common.repo.FileTypes;
+import dk.dma.msiproxy.common.repo.RemoteAttachment;
+import dk.dma.msiproxy.common.repo.RemoteAttachmentLoader;
+import dk.dma.msiproxy.common.repo.RepositoryMetadataCache;
+import dk.dma.msiproxy.common.repo.ThumbnailService;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the RemoteAttachmentLoader, which loads attachments from a local HTTP stub
+ */
+public class RemoteAttachmentLoaderTest {
+
+    static final long WAIT_MS = 10000L;
+    static final int MAX_ATTEMPTS = 3;
+    static final String ETAG = "\"v1\"";
+    static final String LAST_MODIFIED = "Tue, 01 Jan 2019 00:00:00 GMT";
+
+    Path folder;
+    HttpServer server;
+    ExecutorService serverExecutor;
+    volatile HttpHandler handler;
+    List<Headers> requests = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger thumbnails = new AtomicInteger();
+    UpstreamHttpClient httpClient;
+    RepositoryMetadataCache metadataCache;
+    RemoteAttachmentLoader loader;
+    byte[] body;
+
+    @Before
+    public void setup() throws Exception {
+        folder = Files.createTempDirectory("remote-attachments");
+        body = new byte[1024 * 1024];
+        new Random(1).nextBytes(body);
+
+        // Records the request headers and delegates the response to the handler of the test
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            requests.add(exchange.getRequestHeaders());
+            handler.handle(exchange);
+        });
+        server.start();
+
+        // The HTTP client must not retry by itself, so that only the retries of the loader are counted
+        httpClient = new UpstreamHttpClient();
+        setField(httpClient, "log", LoggerFactory.getLogger(UpstreamHttpClient.class));
+        setField(httpClient, "maxConnections", 64L);
+        setField(httpClient, "maxConnectionsPerHost", 8L);
+        setField(httpClient, "connectTimeoutMs", 5000L);
+        setField(httpClient, "readTimeoutMs", 10000L);
+        setField(httpClient, "keepAliveSeconds", 30L);
+        setField(httpClient, "retries", 0L);
+        setField(httpClient, "metricsLogMinutes", 15L);
+        invoke(httpClient, "init");
+
+        FileTypes fileTypes = new FileTypes();
+        invoke(fileTypes, "init");
+
+        metadataCache = new RepositoryMetadataCache();
+        setField(metadataCache, "log", LoggerFactory.getLogger(RepositoryMetadataCache.class));
+        setField(metadataCache, "fileTypes", fileTypes);
+        setField(metadataCache, "cacheSize", 100L);
+        setField(metadataCache, "maxAgeSeconds", 3600L);
+        invoke(metadataCache, "init");
+
+        loader = new RemoteAttachmentLoader();
+        setField(loader, "log", LoggerFactory.getLogger(RemoteAttachmentLoader.class));
+        setField(loader, "httpClient", httpClient);
+        setField(loader, "metadataCache", metadataCache);
+        setField(loader, "thumbnailService", new ThumbnailService() {
+            @Override
+            public void createThumbnails(Path file) {
+                thumbnails.incrementAndGet();
+            }
+        });
+        setField(loader, "threads", 4L);
+        setField(loader, "queueSize", 100L);
+        setField(loader, "maxPerHost", 2L);
+        setField(loader, "revalidateMinutes", 60L);
+        invoke(loader, "init");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        invoke(loader, "closeDown");
+        invoke(metadataCache, "closeDown");
+        invoke(httpClient, "closeDown");
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    @Test
+    public void resumeTest() throws Exception {
+        // The first response is dropped halfway, and the range request is served if the ETag matches
+        handler = exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null) {
+                sendDropped(exchange, body);
+            } else if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+                sendRange(exchange, body, getRangeStart(range));
+            } else {
+                send(exchange, body);
+            }
+        };
+
+        RemoteAttachment att = attachment("a.bin");
+        loadAndWait(att);
+
+        Assert.assertEquals(2, requests.size());
+        Assert.assertNull(requests.get(0).getFirst("Range"));
+        String range = requests.get(1).getFirst("Range");
+        Assert.assertNotNull("Transfer not resumed", range);
+        Assert.assertTrue(getRangeStart(range) > 0 && getRangeStart(range) <= body.length / 2);
+        Assert.assertEquals(ETAG, requests.get(1).getFirst("If-Range"));
+
+        Assert.assertArrayEquals(body, Files.readAllBytes(att.getLocalFileRepoPath()));
+        Assert.assertFalse(Files.exists(partFile(att)));
+        Assert.assertEquals(1, thumbnails.get());
+    }
+
+    @Test
+    public void resumeModifiedTest() throws Exception {
+        // The remote file changes after the first response is dropped, so the range request
+        // is answered with the complete new file, which must replace the partial file
+        byte[] modified = Arrays.copyOf(body, body.length + 10);
+        handler = exchange -> {
+            if (exchange.getRequestHeaders().getFirst("Range") == null) {
+                sendDropped(exchange, body);
+            } else {
+                exchange.getResponseHeaders().add("ETag", "\"v2\"");
+                send(exchange, modified);
+            }
+        };
+
+        RemoteAttachment att = attachment("a.bin");
+        loadAndWait(att);
+
+        Assert.assertEquals(2, requests.size());
+        Assert.assertEquals(ETAG, requests.get(1).getFirst("If-Range"));
+        Assert.assertArrayEquals(modified, Files.readAllBytes(att.getLocalFileRepoPath()));
+        Assert.assertFalse(Files.exists(partFile(att)));
+    }
+
+    @Test
+    public void notModifiedTest() throws Exception {
+        handler = exchange -> {
+            if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.getResponseHeaders().add("ETag", ETAG);
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+            } else {
+                send(exchange, body);
+            }
+        };
+
+        RemoteAttachment att = attachment("a.bin");
+        loadAndWait(att);
+        long lastModified = Files.getLastModifiedTime(att.getLocalFileRepoPath()).toMillis();
+
+        // Revalidate the attachment, which has not been modified
+        setField(loader, "revalidateMinutes", 0L);
+        loadAndWait(att);
+
+        Assert.assertEquals(2, requests.size());
+        Assert.assertEquals(ETAG, requests.get(1).getFirst("If-None-Match"));
+        Assert.assertNotNull(requests.get(1).getFirst("If-Modified-Since"));
+        Assert.assertArrayEquals(body, Files.readAllBytes(att.getLocalFileRepoPath()));
+        Assert.assertEquals(lastModified, Files.getLastModifiedTime(att.getLocalFileRepoPath()).toMillis());
+        Assert.assertEquals(1, thumbnails.get());
+    }
+
+    @Test
+    public void retryLimitTest() throws Exception {
+        // Every response is dropped halfway
+        handler = exchange -> sendDropped(exchange, body);
+
+        RemoteAttachment att = attachment("a.bin");
+        loadAndWait(att);
+
+        Assert.assertEquals(MAX_ATTEMPTS, requests.size());
+        Assert.assertFalse(Files.exists(att.getLocalFileRepoPath()));
+        Assert.assertEquals(0, thumbnails.get());
+    }
+
+    @Test
+    public void noRetryOnErrorStatusTest() throws Exception {
+        handler = exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        };
+
+        RemoteAttachment att = attachment("a.bin");
+        loadAndWait(att);
+
+        Assert.assertEquals(1, requests.size());
+        Assert.assertFalse(Files.exists(att.getLocalFileRepoPath()));
+        Assert.assertFalse(Files.exists(partFile(att)));
+    }
+
+    @Test
+    public void dedupeTest() throws Exception {
+        // Hold back the response until the attachment has been submitted several times
+        CountDownLatch release = new CountDownLatch(1);
+        handler = exchange -> {
+            try {
+                release.await(WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            send(exchange, body);
+        };
+
+        RemoteAttachment att = attachment("a.bin");
+        loader.loadRemoteAttachments(Arrays.asList(att, attachment("a.bin")));
+        loader.loadRemoteAttachments(Collections.singletonList(att));
+        Assert.assertTrue(waitFor(() -> requests.size() == 1));
+        release.countDown();
+        Assert.assertTrue("Attachment not loaded", waitFor(this::isIdle));
+
+        // The attachment has just been validated, so it is not requested again
+        loader.loadRemoteAttachments(Collections.singletonList(att));
+        Assert.assertTrue(isIdle());
+
+        Assert.assertEquals(1, requests.size());
+        Assert.assertArrayEquals(body, Files.readAllBytes(att.getLocalFileRepoPath()));
+        Assert.assertEquals(1, thumbnails.get());
+    }
+
+    /** Returns an attachment with the given name, to be copied to the local folder */
+    private RemoteAttachment attachment(String name) {
+        String url = "http://localhost:" + server.getAddress().getPort() + "/" + name;
+        return new RemoteAttachment() {
+            @Override
+            public Path getLocalFileRepoPath() {
+                return folder.resolve(name);
+            }
+
+            @Override
+            public String getLocalFileRepoUri() {
+                return name;
+            }
+
+            @Override
+            public String getRemoteFileUrl() {
+                return url;
+            }
+
+            @Override
+            public boolean isCopyLocal() {
+                return true;
+            }
+        };
+    }
+
+    /** Returns the partial file of the attachment */
+    private static Path partFile(RemoteAttachment att) {
+        Path file = att.getLocalFileRepoPath();
+        return file.resolveSibling("." + file.getFileName() + ".part");
+    }
+
+    /** Loads the attachment and waits for the loader to complete */
+    private void loadAndWait(RemoteAttachment att) throws Exception {
+        loader.loadRemoteAttachments(Collections.singletonList(att));
+        Assert.assertTrue("Attachment not loaded", waitFor(this::isIdle));
+    }
+
+    /** Returns if the loader has no pending attachments */
+    private boolean isIdle() throws Exception {
+        Field field = RemoteAttachmentLoader.class.getDeclaredField("pendingUrls");
+        field.setAccessible(true);
+        return ((Set<?>) field.get(loader)).isEmpty();
+    }
+
+    /** Returns the first byte position of a "bytes=start-" range header */
+    private static int getRangeStart(String range) {
+        return Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+    }
+
+    /** Sends the complete file */
+    private static void send(HttpExchange exchange, byte[] data) throws IOException {
+        addValidators(exchange);
+        exchange.sendResponseHeaders(200, data.length);
+        exchange.getResponseBody().write(data);
+        exchange.close();
+    }
+
+    /** Sends the file from the given position */
+    private static void sendRange(HttpExchange exchange, byte[] data, int start) throws IOException {
+        addValidators(exchange);
+        exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (data.length - 1) + "/" + data.length);
+        exchange.sendResponseHeaders(206, data.length - start);
+        exchange.getResponseBody().write(data, start, data.length - start);
+        exchange.close();
+    }
+
+    /** Sends the first half of the file and drops the connection */
+    private static void sendDropped(HttpExchange exchange, byte[] data) throws IOException {
+        addValidators(exchange);
+        exchange.sendResponseHeaders(200, data.length);
+        exchange.getResponseBody().write(data, 0, data.length / 2);
+        exchange.getResponseBody().flush();
+        exchange.close();
+        throw new IOException("Connection dropped");
+    }
+
+    /** Adds the validators of the file, unless already defined */
+    private static void addValidators(HttpExchange exchange) {
+        if (!exchange.getResponseHeaders().containsKey("ETag")) {
+            exchange.getResponseHeaders().add("ETag", ETAG);
+        }
+        exchange.getResponseHeaders().add("Last-Modified", LAST_MODIFIED);
+    }
+
+    /** Polls the condition until it holds or the wait time has elapsed */
+    private static boolean waitFor(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /** Invokes a private life cycle method, as the container would */
+    private static void invoke(Object bean, String name) throws Exception {
+        Method method = bean.getClass().getDeclaredMethod(name);
+        method.setAccessible(true);
+        method.invoke(bean);
+    }
+
+    /** Sets the value of a package-private field, as the container would */
+    private static void setField(Object bean, String name, Object value) throws Exception {
+        Field field = bean.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(bean, value);
+    }
+}
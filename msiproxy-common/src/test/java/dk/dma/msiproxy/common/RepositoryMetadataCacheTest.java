@@ -0,0 +1,153 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common;
+
+import dk.dma.msiproxy.common.repo.FileTypes;
+import dk.dma.msiproxy.common.repo.RepositoryMetadataCache;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.concurrent.Callable;
+
+/**
+ * Unit tests for the RepositoryMetadataCache
+ */
+public class RepositoryMetadataCacheTest {
+
+    static final long WAIT_MS = 10000L;
+
+    Path folder;
+    RepositoryMetadataCache cache;
+
+    @Before
+    public void setup() throws Exception {
+        folder = Files.createTempDirectory("repo-metadata");
+
+        FileTypes fileTypes = new FileTypes();
+        invoke(fileTypes, "init");
+
+        // Entries must not expire during the test, so only invalidations can evict them
+        cache = new RepositoryMetadataCache();
+        setField(cache, "log", LoggerFactory.getLogger(RepositoryMetadataCache.class));
+        setField(cache, "fileTypes", fileTypes);
+        setField(cache, "cacheSize", 100L);
+        setField(cache, "maxAgeSeconds", 3600L);
+        invoke(cache, "init");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        invoke(cache, "closeDown");
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    @Test
+    public void invalidateOnModifyTest() throws Exception {
+        Path file = Files.write(folder.resolve("a.txt"), new byte[10]);
+        Assert.assertEquals(10, cache.getMetadata(file).getSize());
+
+        Files.write(file, new byte[20]);
+        Assert.assertTrue("Metadata not invalidated on modify",
+                waitFor(() -> cache.getMetadata(file).getSize() == 20));
+    }
+
+    @Test
+    public void invalidateOnDeleteTest() throws Exception {
+        Path file = Files.write(folder.resolve("a.txt"), new byte[10]);
+        Assert.assertNotNull(cache.getMetadata(file));
+
+        Files.delete(file);
+        Assert.assertTrue("Metadata not invalidated on delete",
+                waitFor(() -> cache.getMetadata(file) == null));
+    }
+
+    @Test
+    public void invalidateOnOverflowTest() throws Exception {
+        Path file = Files.write(folder.resolve("a.txt"), new byte[10]);
+        Path other = Files.write(Files.createDirectory(folder.resolve("sub")).resolve("b.txt"), new byte[10]);
+        Assert.assertEquals(10, cache.getMetadata(file).getSize());
+        Assert.assertEquals(10, cache.getMetadata(other).getSize());
+
+        // Simulate lost events by changing the files with the watch service stopped,
+        // followed by an overflow event, which must clear all entries
+        invoke(cache, "closeDown");
+        Files.write(file, new byte[20]);
+        Files.write(other, new byte[30]);
+        Assert.assertEquals(10, cache.getMetadata(file).getSize());
+
+        Method processEvent = RepositoryMetadataCache.class.getDeclaredMethod("processEvent", Path.class, WatchEvent.class);
+        processEvent.setAccessible(true);
+        processEvent.invoke(cache, folder, new OverflowEvent());
+
+        Assert.assertEquals(20, cache.getMetadata(file).getSize());
+        Assert.assertEquals(30, cache.getMetadata(other).getSize());
+    }
+
+    /** Polls the condition until it holds or the wait time has elapsed */
+    private static boolean waitFor(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /** Invokes a private life cycle method, as the container would */
+    private static void invoke(Object bean, String name) throws Exception {
+        Method method = bean.getClass().getDeclaredMethod(name);
+        method.setAccessible(true);
+        method.invoke(bean);
+    }
+
+    /** Sets the value of a package-private field, as the container would */
+    private static void setField(Object bean, String name, Object value) throws Exception {
+        Field field = bean.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(bean, value);
+    }
+
+    /** An overflow event, as issued when file system events have been lost */
+    static class OverflowEvent implements WatchEvent<Object> {
+
+        @Override
+        public Kind<Object> kind() {
+            return StandardWatchEventKinds.OVERFLOW;
+        }
+
+        @Override
+        public int count() {
+            return 1;
+        }
+
+        @Override
+        public Object context() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common;
+
+import dk.dma.msiproxy.common.repo.FileTypes;
+import dk.dma.msiproxy.common.repo.RepositoryMetadataCache;
+import dk.dma.msiproxy.common.repo.RepositoryService;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Variant;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Unit tests for the byte range handling of the RepositoryService
+ */
+public class RepositoryServiceTest {
+
+    Path repoRoot;
+    RepositoryMetadataCache metadataCache;
+    RepositoryService repositoryService;
+
+    @Before
+    public void setup() throws Exception {
+        repoRoot = Files.createTempDirectory("repo");
+        Files.write(repoRoot.resolve("file.bin"), new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        Files.createFile(repoRoot.resolve("empty.bin"));
+
+        FileTypes fileTypes = new FileTypes();
+        invoke(fileTypes, "init");
+
+        metadataCache = new RepositoryMetadataCache();
+        setField(metadataCache, "log", LoggerFactory.getLogger(RepositoryMetadataCache.class));
+        setField(metadataCache, "fileTypes", fileTypes);
+        setField(metadataCache, "cacheSize", 100L);
+        setField(metadataCache, "maxAgeSeconds", 300L);
+        invoke(metadataCache, "init");
+
+        repositoryService = new RepositoryService();
+        setField(repositoryService, "log", LoggerFactory.getLogger(RepositoryService.class));
+        setField(repositoryService, "repoRoot", repoRoot);
+        setField(repositoryService, "cacheTimeout", 5L);
+        setField(repositoryService, "metadataCache", metadataCache);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        invoke(metadataCache, "closeDown");
+        FileUtils.deleteDirectory(repoRoot.toFile());
+    }
+
+    @Test
+    public void streamFileTest() throws Exception {
+        String etag = repositoryService.streamFile("file.bin", null, null, new NoPreconditionsRequest())
+                .getEntityTag().toString();
+
+        assertStreamed(null, null, 200, null, 0, 10);
+        assertStreamed("bytes=2-5", null, 206, "bytes 2-5/10", 2, 4);
+        assertStreamed("bytes=-3", null, 206, "bytes 7-9/10", 7, 3);
+        assertStreamed("bytes=7-", null, 206, "bytes 7-9/10", 7, 3);
+        assertStreamed("bytes=10-", null, 416, "bytes */10", 0, 0);
+        assertStreamed("bytes=0-1,3-4", null, 200, null, 0, 10);
+        assertStreamed("bytes=5-2", null, 200, null, 0, 10);
+
+        // If-Range
+        assertStreamed("bytes=2-5", etag, 206, "bytes 2-5/10", 2, 4);
+        assertStreamed("bytes=2-5", "\"0_10\"", 200, null, 0, 10);
+
+        // Empty file
+        Response response = repositoryService.streamFile("empty.bin", null, null, new NoPreconditionsRequest());
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals("0", response.getHeaderString("Content-Length"));
+        Assert.assertEquals(0, getBody(response).length);
+        Assert.assertEquals(416, repositoryService.streamFile("empty.bin", "bytes=0-", null, new NoPreconditionsRequest()).getStatus());
+
+        // Missing file
+        Assert.assertEquals(404, repositoryService.streamFile("missing.bin", null, null, new NoPreconditionsRequest()).getStatus());
+    }
+
+    /** Streams the test file and checks the response */
+    private void assertStreamed(String range, String ifRange, int status, String contentRange, int start, int length) throws Exception {
+        Response response = repositoryService.streamFile("file.bin", range, ifRange, new NoPreconditionsRequest());
+        Assert.assertEquals(range, status, response.getStatus());
+        Assert.assertEquals(range, contentRange, response.getHeaderString("Content-Range"));
+        if (status != 416) {
+            Assert.assertEquals(range, "bytes", response.getHeaderString("Accept-Ranges"));
+            Assert.assertEquals(range, String.valueOf(length), response.getHeaderString("Content-Length"));
+            Assert.assertArrayEquals(range,
+                    Arrays.copyOfRange(Files.readAllBytes(repoRoot.resolve("file.bin")), start, start + length),
+                    getBody(response));
+        }
+    }
+
+    /** Returns the streamed response body */
+    private static byte[] getBody(Response response) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+        return out.toByteArray();
+    }
+
+    /** Invokes a private life cycle method, as the container would */
+    private static void invoke(Object bean, String name) throws Exception {
+        Method method = bean.getClass().getDeclaredMethod(name);
+        method.setAccessible(true);
+        method.invoke(bean);
+    }
+
+    /** Sets the value of a package-private field, as the container would */
+    private static void setField(Object bean, String name, Object value) throws Exception {
+        Field field = bean.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(bean, value);
+    }
+
+    /** A request that never matches the preconditions */
+    static class NoPreconditionsRequest implements Request {
+
+        @Override
+        public String getMethod() {
+            return "GET";
+        }
+
+        @Override
+        public Variant selectVariant(List<Variant> variants) {
+            return null;
+        }
+
+        @Override
+        public Response.ResponseBuilder evaluatePreconditions(EntityTag eTag) {
+            return null;
+        }
+
+        @Override
+        public Response.ResponseBuilder evaluatePreconditions(Date lastModified) {
+            return null;
+        }
+
+        @Override
+        public Response.ResponseBuilder evaluatePreconditions(Date lastModified, EntityTag eTag) {
+            return null;
+        }
+
+        @Override
+        public Response.ResponseBuilder evaluatePreconditions() {
+            return null;
+        }
+    }
+}
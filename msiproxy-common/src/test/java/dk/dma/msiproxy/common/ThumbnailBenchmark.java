@@ -0,0 +1,127 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common;
+
+import dk.dma.msiproxy.common.repo.ThumbnailService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of creating a thumbnail image by decoding the full-resolution image and
+ * scaling it using an {@code AffineTransform}, as previously done by {@link ThumbnailService},
+ * with decoding a subsampled image followed by a bilinear downscale.
+ * <p>
+ * The images are the "tycho-brahe-stjerneborg.jpg" test image (468x312) and the same
+ * image enlarged by the "scale" factor, e.g. 8 for a 3744x2496 image.
+ * <p>
+ * Run using the main method. The GC profiler reports the allocated bytes per thumbnail.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThumbnailBenchmark {
+
+    @Param({ "1", "8" })
+    int scale;
+
+    @Param({ "64" })
+    int size;
+
+    Path imageFile;
+
+    @Setup
+    public void setup() throws IOException {
+        BufferedImage image;
+        try (InputStream in = getClass().getResourceAsStream("/tycho-brahe-stjerneborg.jpg")) {
+            image = ImageIO.read(in);
+        }
+
+        BufferedImage scaledImage = new BufferedImage(
+                image.getWidth() * scale,
+                image.getHeight() * scale,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = scaledImage.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g2d.drawImage(image, 0, 0, scaledImage.getWidth(), scaledImage.getHeight(), null);
+        g2d.dispose();
+
+        imageFile = Files.createTempFile("thumbnail", ".jpg");
+        ImageIO.write(scaledImage, "jpg", imageFile.toFile());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(imageFile);
+    }
+
+    @Benchmark
+    public BufferedImage fullDecode() throws IOException {
+        BufferedImage image = ImageIO.read(imageFile.toFile());
+        int w = image.getWidth();
+        int h = image.getHeight();
+        double d = Math.min((double)size / (double)w, (double)size / (double)h);
+
+        BufferedImage thumbImage = new BufferedImage(
+                (int)Math.round(w * d),
+                (int)Math.round(h * d),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = thumbImage.createGraphics();
+        g2d.drawRenderedImage(image, AffineTransform.getScaleInstance(d, d));
+        g2d.dispose();
+        image.flush();
+        return thumbImage;
+    }
+
+    @Benchmark
+    public BufferedImage subsampledDecode() throws IOException {
+        return ThumbnailService.readScaledImage(imageFile, size);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ThumbnailBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -29,7 +29,6 @@ import org.junit.runner.RunWith;
 
 import javax.inject.Inject;
 import java.io.File;
-import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
@@ -49,7 +48,7 @@ public class ThumbnailServiceTest {
 
     @Test
     @Ignore // Setting the lastModifiedTime on Cloudbees does not seem to work
-    public void thumbnailServiceTest() throws IOException {
+    public void thumbnailServiceTest() throws Exception {
 
         String filePath = getClass().getResource("/tycho-brahe-stjerneborg.jpg").getFile();
         Assert.assertNotEquals(filePath, "");
@@ -63,7 +62,8 @@ public class ThumbnailServiceTest {
         Assert.assertEquals(now, Files.getLastModifiedTime(path).toMillis());
 
         // Create a thumbnail
-        Path thumbnail = thumbnailService.getThumbnail(path, IconSize.SIZE_32);
+        Assert.assertNull(thumbnailService.getThumbnail(path, IconSize.SIZE_32));
+        Path thumbnail = thumbnailService.createThumbnail(path, IconSize.SIZE_32).get();
 
         // Ensure that it has the expected name and modified-time
         Assert.assertTrue(Files.exists(thumbnail));
@@ -0,0 +1,183 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.common;
+
+import dk.dma.msiproxy.common.util.WebUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for the byte range handling of WebUtils
+ */
+public class WebUtilsTest {
+
+    static final String ETAG = "\"1000_10\"";
+
+    Path file, emptyFile;
+
+    @Before
+    public void setup() throws Exception {
+        file = Files.write(Files.createTempFile("range", ".bin"), new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        emptyFile = Files.createTempFile("range", ".bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(emptyFile);
+    }
+
+    @Test
+    public void parseRangeTest() {
+        // Single ranges
+        Assert.assertArrayEquals(new long[] { 2, 5 }, WebUtils.parseRange("bytes=2-5", 10));
+        Assert.assertArrayEquals(new long[] { 2, 9 }, WebUtils.parseRange("bytes=2-50", 10));
+        Assert.assertArrayEquals(new long[] { 7, 9 }, WebUtils.parseRange("bytes=7-", 10));
+        Assert.assertArrayEquals(new long[] { 9, 9 }, WebUtils.parseRange(" bytes=9-9 ", 10));
+
+        // Suffix ranges
+        Assert.assertArrayEquals(new long[] { 7, 9 }, WebUtils.parseRange("bytes=-3", 10));
+        Assert.assertArrayEquals(new long[] { 0, 9 }, WebUtils.parseRange("bytes=-30", 10));
+
+        // Unsatisfiable ranges
+        Assert.assertNull(WebUtils.parseRange("bytes=10-", 10));
+        Assert.assertNull(WebUtils.parseRange("bytes=11-20", 10));
+        Assert.assertNull(WebUtils.parseRange("bytes=-0", 10));
+        Assert.assertNull(WebUtils.parseRange("bytes=0-", 0));
+        Assert.assertNull(WebUtils.parseRange("bytes=-1", 0));
+
+        // Ignored ranges
+        for (String range : Arrays.asList("bytes=0-1,3-4", "items=0-1", "bytes=a-b", "bytes=5-2", "bytes=1", "bytes=-")) {
+            Assert.assertEquals(range, 0, WebUtils.parseRange(range, 10).length);
+        }
+    }
+
+    @Test
+    public void streamFileTest() throws Exception {
+        assertStreamed(null, null, 200, null, 0, 10);
+        assertStreamed("bytes=2-5", null, 206, "bytes 2-5/10", 2, 4);
+        assertStreamed("bytes=-3", null, 206, "bytes 7-9/10", 7, 3);
+        assertStreamed("bytes=7-", null, 206, "bytes 7-9/10", 7, 3);
+        assertStreamed("bytes=0-", null, 206, "bytes 0-9/10", 0, 10);
+        assertStreamed("bytes=10-", null, 416, "bytes */10", 0, 0);
+        assertStreamed("bytes=0-1,3-4", null, 200, null, 0, 10);
+        assertStreamed("bytes=a-b", null, 200, null, 0, 10);
+
+        // If-Range
+        assertStreamed("bytes=2-5", ETAG, 206, "bytes 2-5/10", 2, 4);
+        assertStreamed("bytes=2-5", "\"999_10\"", 200, null, 0, 10);
+
+        // Empty file
+        TestResponse response = streamFile(emptyFile, null, null);
+        Assert.assertEquals(200, response.status);
+        Assert.assertEquals(0L, response.contentLength);
+        Assert.assertEquals(0, response.out.size());
+        Assert.assertEquals(416, streamFile(emptyFile, "bytes=0-", null).status);
+    }
+
+    /** Streams the test file and checks the response */
+    private void assertStreamed(String range, String ifRange, int status, String contentRange, int start, int length) throws Exception {
+        TestResponse response = streamFile(file, range, ifRange);
+        Assert.assertEquals(range, status, response.status);
+        Assert.assertEquals(range, contentRange, response.headers.get("Content-Range"));
+        Assert.assertEquals(range, "bytes", response.headers.get("Accept-Ranges"));
+        if (status != 416) {
+            Assert.assertEquals(range, length, response.contentLength);
+            Assert.assertArrayEquals(range,
+                    Arrays.copyOfRange(Files.readAllBytes(file), start, start + length),
+                    response.out.toByteArray());
+        }
+    }
+
+    /** Streams the file using a request with the given headers */
+    private TestResponse streamFile(Path file, String range, String ifRange) throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Range", range);
+        headers.put("If-Range", ifRange);
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                (proxy, method, args) -> "getHeader".equals(method.getName()) ? headers.get(args[0]) : null);
+
+        TestResponse response = new TestResponse();
+        WebUtils.streamFile(request, response.proxy(), file, ETAG);
+        return response;
+    }
+
+    /**
+     * Records the status, headers and body written to a servlet response
+     */
+    static class TestResponse {
+        int status = 200;
+        long contentLength = -1L;
+        final Map<String, String> headers = new HashMap<>();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        HttpServletResponse proxy() {
+            ServletOutputStream outputStream = new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    out.write(b);
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                }
+            };
+
+            return (HttpServletResponse) Proxy.newProxyInstance(
+                    getClass().getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class },
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "setStatus":
+                            case "sendError":
+                                status = (Integer) args[0];
+                                return null;
+                            case "setHeader":
+                                headers.put((String) args[0], (String) args[1]);
+                                return null;
+                            case "setContentLengthLong":
+                                contentLength = (Long) args[0];
+                                return null;
+                            case "getOutputStream":
+                                return outputStream;
+                            default:
+                                return null;
+                        }
+                    });
+        }
+    }
+}
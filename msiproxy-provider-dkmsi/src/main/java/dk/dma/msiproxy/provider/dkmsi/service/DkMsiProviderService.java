@@ -186,6 +186,9 @@ public class DkMsiProviderService extends AbstractProviderService {
         // Register with the providers service
         providers.registerProvider(this);
 
+        // In clustered mode, apply message snapshots published by the loading node
+        messageCache.registerSnapshotListener(getProviderId(), this::applySnapshot);
+
         // Load messages
         loadMessages();
     }
@@ -220,6 +223,12 @@ public class DkMsiProviderService extends AbstractProviderService {
     @Override
     public List<Message> loadMessages() {
 
+        // In clustered mode, only the elected loading node reads from the legacy DB
+        if (loadMessagesFromCluster()) {
+            lastActiveMessages = new CopyOnWriteArrayList<>();
+            return messages;
+        }
+
         long t0 = System.currentTimeMillis();
         try {
 
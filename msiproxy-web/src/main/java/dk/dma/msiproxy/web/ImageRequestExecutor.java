@@ -0,0 +1,185 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import org.slf4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executes image requests that involve remote I/O, such as fetching map tiles or WMS images,
+ * asynchronously on a dedicated bounded worker pool.
+ * <p>
+ * The servlet request is put into asynchronous mode, so that the container request thread is
+ * released while the image is being fetched and rendered. If the worker pool is saturated,
+ * the task fails, or the task does not complete within the "imageRequestTimeoutMs" setting,
+ * the client is redirected to a fallback image instead.
+ */
+@ApplicationScoped
+public class ImageRequestExecutor {
+
+    @Inject
+    Logger log;
+
+    @Inject
+    @Setting(value = "imageRequestThreads", defaultValue = "8")
+    Long threads;
+
+    @Inject
+    @Setting(value = "imageRequestQueueSize", defaultValue = "200")
+    Long queueSize;
+
+    @Inject
+    @Setting(value = "imageRequestTimeoutMs", defaultValue = "20000")
+    Long timeoutMs;
+
+    private ThreadPoolExecutor pool;
+
+    @PostConstruct
+    private void init() {
+        pool = new ThreadPoolExecutor(
+                threads.intValue(),
+                threads.intValue(),
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize.intValue()));
+    }
+
+    @PreDestroy
+    private void closeDown() {
+        if (pool != null && !pool.isShutdown()) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Executes the image task asynchronously.
+     * <p>
+     * The task is called on a worker thread and should perform all remote I/O and rendering.
+     * The returned {@code ImageResponse} is then used to write the response, unless the
+     * request has timed out in the meantime.
+     *
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param fallbackUri the URI of the fallback image
+     * @param task the image task
+     */
+    public void execute(HttpServletRequest request, HttpServletResponse response, String fallbackUri, ImageTask task)
+            throws IOException {
+
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(timeoutMs);
+
+        // Either the worker or the timeout handler gets to write the response
+        AtomicBoolean handled = new AtomicBoolean();
+
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (handled.compareAndSet(false, true)) {
+                    log.warn("Timeout processing image request " + request.getRequestURI());
+                    response.sendRedirect(fallbackUri);
+                    asyncContext.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        try {
+            pool.execute(() -> {
+                ImageResponse imageResponse = null;
+                try {
+                    imageResponse = task.call();
+                } catch (Exception e) {
+                    log.debug("Error processing image request " + request.getRequestURI() + ": " + e);
+                }
+
+                if (handled.compareAndSet(false, true)) {
+                    try {
+                        if (imageResponse != null) {
+                            imageResponse.write(response);
+                        } else {
+                            response.sendRedirect(fallbackUri);
+                        }
+                    } catch (Exception e) {
+                        log.debug("Error writing image response " + request.getRequestURI() + ": " + e);
+                    } finally {
+                        asyncContext.complete();
+                    }
+                }
+            });
+
+        } catch (RejectedExecutionException e) {
+            if (handled.compareAndSet(false, true)) {
+                log.warn("Image request pool saturated. Returning fallback for " + request.getRequestURI());
+                response.sendRedirect(fallbackUri);
+                asyncContext.complete();
+            }
+        }
+    }
+
+    /**
+     * Fetches and renders an image on a worker thread
+     */
+    @FunctionalInterface
+    public interface ImageTask {
+
+        /**
+         * Fetches and renders the image
+         * @return the image response, or null to return the fallback image
+         */
+        ImageResponse call() throws Exception;
+    }
+
+    /**
+     * Writes an image to the servlet response
+     */
+    @FunctionalInterface
+    public interface ImageResponse {
+
+        /**
+         * Writes the image to the servlet response
+         * @param response the servlet response
+         */
+        void write(HttpServletResponse response) throws IOException;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package dk.dma.msiproxy.web;
 
+import dk.dma.msiproxy.common.http.UpstreamHttpClient;
+import dk.dma.msiproxy.common.repo.RepositoryMetadataCache;
 import dk.dma.msiproxy.common.settings.annotation.Setting;
 import dk.dma.msiproxy.common.util.GraphicsUtils;
 import dk.dma.msiproxy.model.msi.Location;
@@ -31,9 +33,6 @@ import java.awt.Image;
 import java.awt.geom.GeneralPath;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
@@ -53,6 +52,15 @@ public class MapImageProducer {
     @Inject
     Logger log;
 
+    @Inject
+    MapTileCache mapTileCache;
+
+    @Inject
+    UpstreamHttpClient httpClient;
+
+    @Inject
+    RepositoryMetadataCache metadataCache;
+
     @Inject
     @Setting(value = "mapImageServer", defaultValue = "http://osm.e-navigation.net/staticmap.php")
     String mapImageServer;
@@ -73,12 +81,62 @@ public class MapImageProducer {
 
 
     /**
-     * Fetches the map image and crops it if specified
+     * Fetches the map image. If a tile server has been configured, the map image
+     * is composed from cached tiles. Otherwise, it is fetched from the static map image server.
      * @param centerPt the center point
      * @param zoom the zoom level
      * @return the image
      */
     protected BufferedImage fetchMapImage(Point centerPt, int zoom) throws  IOException {
+        return mapTileCache.isEnabled()
+                ? composeMapImage(centerPt, zoom)
+                : fetchStaticMapImage(centerPt, zoom);
+    }
+
+    /**
+     * Composes the map image from the tiles covering the image
+     * @param centerPt the center point
+     * @param zoom the zoom level
+     * @return the image
+     */
+    protected BufferedImage composeMapImage(Point centerPt, int zoom) throws  IOException {
+        int size = mapImageSize.intValue();
+        int tileSize = GlobalMercator.TILE_SIZE;
+        int tileCount = 1 << zoom;
+
+        // Compute the top-left corner of the image in raster pixel coordinates (origin in the top-left corner)
+        int cxy[] = mercator.LatLonToPixels(centerPt.getLat(), centerPt.getLon(), zoom);
+        int rxy[] = mercator.PixelsToRaster(cxy[0], cxy[1], zoom);
+        int x0 = rxy[0] - size / 2;
+        int y0 = rxy[1] - size / 2;
+
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = image.createGraphics();
+        g2.setColor(Color.WHITE);
+        g2.fillRect(0, 0, size, size);
+
+        // Draw the tiles covering the image
+        for (int ty = Math.floorDiv(y0, tileSize); ty <= Math.floorDiv(y0 + size - 1, tileSize); ty++) {
+            if (ty < 0 || ty >= tileCount) {
+                continue;
+            }
+            for (int tx = Math.floorDiv(x0, tileSize); tx <= Math.floorDiv(x0 + size - 1, tileSize); tx++) {
+                BufferedImage tile = mapTileCache.getTile(zoom, Math.floorMod(tx, tileCount), ty);
+                g2.drawImage(tile, tx * tileSize - x0, ty * tileSize - y0, null);
+            }
+        }
+        g2.dispose();
+
+        return image;
+    }
+
+    /**
+     * Fetches the map image from the static map image server and crops it if specified
+     * @param centerPt the center point
+     * @param zoom the zoom level
+     * @return the image
+     */
+    protected BufferedImage fetchStaticMapImage(Point centerPt, int zoom) throws  IOException {
         // Fetch the image
         long fetchSize = mapImageSize + 2 * mapImageIndent;
         String url = String.format(
@@ -90,13 +148,9 @@ public class MapImageProducer {
                 fetchSize,
                 fetchSize);
 
-        URLConnection con = new URL(url).openConnection();
-        con.setConnectTimeout(5000);
-        con.setReadTimeout(5000);
-
-        BufferedImage image;
-        try (InputStream in = con.getInputStream()) {
-            image = ImageIO.read(in);
+        BufferedImage image = httpClient.getImage(url);
+        if (image == null) {
+            throw new IOException("Invalid map image " + url);
         }
 
         // Check if we need to crop the image (e.g. to remove watermarks)
@@ -213,6 +267,7 @@ public class MapImageProducer {
 
             // Update the timestamp of the image file to match the change date of the message
             Files.setLastModifiedTime(imageRepoPath, FileTime.fromMillis(imageDate.getTime()));
+            metadataCache.invalidate(imageRepoPath);
 
             log.info("Saved image for to file " + imageRepoPath);
             return true;
@@ -0,0 +1,197 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import dk.dma.msiproxy.common.http.UpstreamHttpClient;
+import dk.dma.msiproxy.common.repo.RepositoryService;
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import org.slf4j.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.imageio.ImageIO;
+import javax.inject.Inject;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A two-level cache of standard 256 pixel XYZ map tiles.
+ * <p>
+ * Tiles are fetched from the tile server defined by the "mapTileServer" URL template,
+ * e.g. "http://tile.openstreetmap.org/{z}/{x}/{y}.png", and stored in the "tiles" folder
+ * of the repository. Tiles older than "mapTileMaxAgeDays" are re-fetched.
+ * The most recently used decoded tiles are furthermore kept in memory.
+ */
+@ApplicationScoped
+public class MapTileCache {
+
+    static final String TILE_REPO_ROOT_FOLDER = "tiles";
+    static final int LOCK_STRIPES = 64;
+
+    @Inject
+    Logger log;
+
+    @Inject
+    RepositoryService repositoryService;
+
+    @Inject
+    UpstreamHttpClient httpClient;
+
+    @Inject
+    @Setting(value = "mapTileServer", defaultValue = "")
+    String mapTileServer;
+
+    @Inject
+    @Setting(value = "mapTileMemoryCacheSize", defaultValue = "128")
+    Long memoryCacheSize;
+
+    @Inject
+    @Setting(value = "mapTileMaxAgeDays", defaultValue = "30")
+    Long maxAgeDays;
+
+    private final Object[] tileLocks = new Object[LOCK_STRIPES];
+    private Map<String, BufferedImage> memoryCache;
+
+    /**
+     * Constructor
+     */
+    public MapTileCache() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            tileLocks[i] = new Object();
+        }
+        memoryCache = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                return size() > memoryCacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns if a tile server has been configured
+     * @return if a tile server has been configured
+     */
+    public boolean isEnabled() {
+        return mapTileServer != null && mapTileServer.trim().length() > 0;
+    }
+
+    /**
+     * Returns the tile with the given Google/XYZ tile coordinates.
+     * The tile is looked up in the memory cache, then the disk cache,
+     * and finally fetched from the tile server.
+     *
+     * @param z the zoom level
+     * @param x the tile x coordinate
+     * @param y the tile y coordinate
+     * @return the tile image
+     */
+    public BufferedImage getTile(int z, int x, int y) throws IOException {
+        String key = z + "/" + x + "/" + y;
+
+        BufferedImage tile = getMemoryCachedTile(key);
+        if (tile != null) {
+            return tile;
+        }
+
+        // Prevent concurrent fetching of the same tile
+        synchronized (tileLocks[Math.abs(key.hashCode() % LOCK_STRIPES)]) {
+            tile = getMemoryCachedTile(key);
+            if (tile == null) {
+                tile = loadTile(key);
+                synchronized (memoryCache) {
+                    memoryCache.put(key, tile);
+                }
+            }
+            return tile;
+        }
+    }
+
+    /**
+     * Returns the tile from the memory cache, or null if not found
+     * @param key the tile key
+     * @return the tile from the memory cache
+     */
+    private BufferedImage getMemoryCachedTile(String key) {
+        synchronized (memoryCache) {
+            return memoryCache.get(key);
+        }
+    }
+
+    /**
+     * Loads the tile from the disk cache, or from the tile server if the tile is missing or expired
+     * @param key the tile key
+     * @return the tile image
+     */
+    private BufferedImage loadTile(String key) throws IOException {
+        Path tileFile = repositoryService.getRepoRoot()
+                .resolve(TILE_REPO_ROOT_FOLDER)
+                .resolve(key + ".png");
+
+        boolean exists = Files.isRegularFile(tileFile);
+        long maxAge = maxAgeDays * 24L * 60L * 60L * 1000L;
+        if (exists && Files.getLastModifiedTime(tileFile).toMillis() > System.currentTimeMillis() - maxAge) {
+            BufferedImage tile = ImageIO.read(tileFile.toFile());
+            if (tile != null) {
+                return tile;
+            }
+        }
+
+        try {
+            fetchTile(key, tileFile);
+        } catch (IOException e) {
+            // Fall back to an expired tile
+            if (!exists) {
+                throw e;
+            }
+            log.warn("Failed fetching tile " + key + ". Using expired tile: " + e);
+        }
+
+        BufferedImage tile = ImageIO.read(tileFile.toFile());
+        if (tile == null) {
+            throw new IOException("Invalid tile " + tileFile);
+        }
+        return tile;
+    }
+
+    /**
+     * Fetches the tile from the tile server and stores it in the disk cache
+     * @param key the tile key
+     * @param tileFile the tile file
+     */
+    private void fetchTile(String key, Path tileFile) throws IOException {
+        long t0 = System.currentTimeMillis();
+        String[] zxy = key.split("/");
+        String url = mapTileServer
+                .replace("{z}", zxy[0])
+                .replace("{x}", zxy[1])
+                .replace("{y}", zxy[2]);
+
+        // Write to a temporary file and move it in place, so readers never see partial tiles
+        Files.createDirectories(tileFile.getParent());
+        Path tmpFile = Files.createTempFile(tileFile.getParent(), "tile", ".tmp");
+        try {
+            httpClient.get(url, in -> Files.copy(in, tmpFile, StandardCopyOption.REPLACE_EXISTING));
+            Files.move(tmpFile, tileFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+        log.debug("Fetched tile " + url + " in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+}
@@ -0,0 +1,251 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import dk.dma.msiproxy.common.MsiProxyApp;
+import dk.dma.msiproxy.common.http.UpstreamHttpClient;
+import dk.dma.msiproxy.common.provider.AbstractProviderService;
+import dk.dma.msiproxy.common.provider.MessagesUpdatedEvent;
+import dk.dma.msiproxy.common.provider.Providers;
+import dk.dma.msiproxy.common.repo.RepositoryService;
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import dk.dma.msiproxy.common.util.WebUtils;
+import dk.dma.msiproxy.model.msi.Area;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Pre-generates the most commonly requested message details PDF files after the messages
+ * of a provider have been updated, and stores them in the "pdf" folder of the repository.
+ * <p>
+ * The bundled variants are the PDF files of all messages of a single provider in each
+ * language, with or without filtering on a single area heading, as computed by
+ * {@link TldFunctions#getAreaHeading}. Requests for these variants are then served
+ * by the {@link MessageDetailsServlet} as static files with byte range support.
+ * <p>
+ * Bundle files are named by the PDF cache key, which changes with the messages
+ * included in the PDF, so stale bundle files are never served.
+ */
+@Singleton
+@Lock(LockType.READ)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class MessageDetailsPdfBundles {
+
+    static final String PDF_REPO_ROOT_FOLDER = "pdf";
+    static final long GENERATION_DELAY_MS = 10 * 1000L;
+
+    @Inject
+    Logger log;
+
+    @Inject
+    Providers providers;
+
+    @Inject
+    RepositoryService repositoryService;
+
+    @Inject
+    UpstreamHttpClient httpClient;
+
+    @Inject
+    MsiProxyApp app;
+
+    @Resource
+    TimerService timerService;
+
+    @Inject
+    @Setting(value = "pdfBundlesEnabled", defaultValue = "true")
+    Boolean enabled;
+
+    /**
+     * Returns if the PDF file defined by the given request parameters is a bundled variant
+     *
+     * @param providerId the provider parameter
+     * @param messageId the message ID parameter
+     * @param activeNow the normalized active-now parameter, i.e. "true" or null
+     * @param areaHeadingIds the normalized area headings parameter, i.e. null if blank
+     * @return if the PDF file is a bundled variant
+     */
+    public boolean isBundled(String providerId, String messageId, String activeNow, String areaHeadingIds) {
+        return enabled &&
+                StringUtils.isNotBlank(providerId) &&
+                !providerId.contains(":") &&
+                !"all".equalsIgnoreCase(providerId) &&
+                StringUtils.isBlank(messageId) &&
+                !"true".equals(activeNow) &&
+                (StringUtils.isBlank(areaHeadingIds) || StringUtils.isNumeric(areaHeadingIds));
+    }
+
+    /**
+     * Returns the bundle file with the given PDF cache key
+     *
+     * @param providerId the provider ID
+     * @param key the PDF cache key
+     * @return the bundle file
+     */
+    public Path getBundleFile(String providerId, String key) {
+        return getBundleFolder(providerId).resolve(key + ".pdf");
+    }
+
+    /**
+     * Stores the PDF file as a bundle file. The file is written via a temporary file,
+     * so that readers never see partial files.
+     *
+     * @param bundleFile the bundle file
+     * @param data the PDF data
+     */
+    public void saveBundle(Path bundleFile, byte[] data) {
+        try {
+            Files.createDirectories(bundleFile.getParent());
+            Path tmpFile = Files.createTempFile(bundleFile.getParent(), "pdf", ".tmp");
+            try {
+                Files.write(tmpFile, data);
+                Files.move(tmpFile, bundleFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+        } catch (IOException e) {
+            log.warn("Failed saving PDF bundle " + bundleFile + ": " + e);
+        }
+    }
+
+    /**
+     * Schedules generation of the bundle files of the provider whose messages have been updated.
+     * Generation is delayed, so that successive updates only result in a single generation.
+     *
+     * @param event the messages updated event
+     */
+    public void messagesUpdated(@Observes MessagesUpdatedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        String providerId = event.getProviderService().getProviderId();
+        timerService.getTimers().stream()
+                .filter(timer -> providerId.equals(timer.getInfo()))
+                .forEach(Timer::cancel);
+        timerService.createSingleActionTimer(GENERATION_DELAY_MS, new TimerConfig(providerId, false));
+    }
+
+    /**
+     * Generates the bundle files of the provider and deletes the stale bundle files
+     * @param timer the timer whose info is the provider ID
+     */
+    @Timeout
+    private void generateBundles(Timer timer) {
+        String providerId = (String) timer.getInfo();
+        AbstractProviderService providerService = providers.getProvider(providerId);
+        if (providerService == null) {
+            return;
+        }
+
+        long t0 = System.currentTimeMillis();
+        Set<Integer> areaHeadingIds = providerService.getActiveMessages().stream()
+                .map(TldFunctions::getAreaHeading)
+                .filter(Objects::nonNull)
+                .map(Area::getId)
+                .collect(Collectors.toSet());
+
+        List<String> urls = new ArrayList<>();
+        for (String lang : providerService.getLanguages()) {
+            String url = app.getBaseUri() + "/details.pdf?provider=" + WebUtils.encode(providerId) + "&lang=" + lang;
+            urls.add(url);
+            areaHeadingIds.forEach(id -> urls.add(url + "&areaHeadings=" + id));
+        }
+
+        // Request the PDF files, which causes the MessageDetailsServlet to store them as bundle files
+        Set<String> bundleFileNames = new HashSet<>();
+        for (String url : urls) {
+            try {
+                String etag = httpClient.execute(new HttpGet(url), response -> {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    Header header = response.getFirstHeader("ETag");
+                    return response.getStatusLine().getStatusCode() == 200 && header != null ? header.getValue() : null;
+                });
+                if (etag != null) {
+                    bundleFileNames.add(StringUtils.strip(etag, "\"") + ".pdf");
+                }
+            } catch (IOException e) {
+                log.warn("Failed generating PDF bundle " + url + ": " + e);
+            }
+        }
+
+        int deleted = deleteStaleBundles(providerId, bundleFileNames);
+        log.info(String.format("Generated %d of %d PDF bundles for provider %s and deleted %d stale bundles in %d ms",
+                bundleFileNames.size(), urls.size(), providerId, deleted, System.currentTimeMillis() - t0));
+    }
+
+    /**
+     * Deletes the bundle files of the provider that are not in the given set of current bundle files
+     *
+     * @param providerId the provider ID
+     * @param bundleFileNames the names of the current bundle files
+     * @return the number of deleted bundle files
+     */
+    private int deleteStaleBundles(String providerId, Set<String> bundleFileNames) {
+        Path folder = getBundleFolder(providerId);
+        if (!Files.isDirectory(folder)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".pdf") && !bundleFileNames.contains(name)) {
+                    Files.deleteIfExists(file);
+                    deleted++;
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed deleting stale PDF bundles for provider " + providerId + ": " + e);
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns the bundle folder of the provider
+     * @param providerId the provider ID
+     * @return the bundle folder of the provider
+     */
+    private Path getBundleFolder(String providerId) {
+        return repositoryService.getRepoRoot().resolve(PDF_REPO_ROOT_FOLDER).resolve(providerId);
+    }
+}
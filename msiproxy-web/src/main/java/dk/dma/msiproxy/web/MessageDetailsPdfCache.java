@@ -0,0 +1,178 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import dk.dma.msiproxy.common.provider.MessagesUpdatedEvent;
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import dk.dma.msiproxy.model.msi.Message;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * Caches the PDF files generated by the {@link MessageDetailsServlet}.
+ * <p>
+ * The PDF files are keyed by the request parameters and the ID and update time of the
+ * messages included in the PDF. Hence, the key changes whenever a new snapshot of the
+ * messages changes the content of the PDF, including when messages become active.
+ * The key also serves as the ETag of the PDF.
+ * <p>
+ * Concurrent requests for the same PDF wait for a single PDF generation, and cached
+ * PDF files of a provider are evicted when the messages of the provider are updated.
+ * Requests wait at most "pdfRenderTimeoutSeconds" for a PDF generated by another thread.
+ */
+@ApplicationScoped
+public class MessageDetailsPdfCache {
+
+    @Inject
+    Logger log;
+
+    @Inject
+    @Setting(value = "pdfCacheMaxEntries", defaultValue = "50")
+    Long maxEntries;
+
+    @Inject
+    @Setting(value = "pdfRenderTimeoutSeconds", defaultValue = "60")
+    Long timeoutSeconds;
+
+    private Map<String, CachedPdf> cache;
+    private final Map<String, CompletableFuture<byte[]>> pendingPdfs = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     */
+    public MessageDetailsPdfCache() {
+        cache = new LinkedHashMap<String, CachedPdf>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPdf> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache key of the PDF with the given parameters and messages
+     *
+     * @param providerId the provider parameter
+     * @param lang the language
+     * @param messageId the message ID parameter
+     * @param activeNow the normalized active-now parameter, i.e. "true" or null
+     * @param areaHeadingIds the normalized area headings parameter, i.e. null if blank
+     * @param messages the messages included in the PDF
+     * @return the cache key of the PDF
+     */
+    public String getKey(String providerId, String lang, String messageId, String activeNow, String areaHeadingIds, List<Message> messages) {
+        return DigestUtils.md5Hex(
+                String.format(
+                        "pdf_%s_%s_%s_%s_%s_%s",
+                        StringUtils.defaultString(providerId),
+                        lang,
+                        StringUtils.defaultString(messageId),
+                        StringUtils.defaultString(activeNow),
+                        StringUtils.defaultString(areaHeadingIds),
+                        messages.stream()
+                                .map(msg -> msg.getId() + ":" + (msg.getUpdated() == null ? 0L : msg.getUpdated().getTime()))
+                                .collect(Collectors.joining(","))
+                )
+        );
+    }
+
+    /**
+     * Returns the cached PDF with the given key. If the PDF is not cached, it is generated using the
+     * PDF generator. If another thread is already generating the PDF, waits for that thread instead.
+     *
+     * @param key the cache key of the PDF
+     * @param providerIds the IDs of the providers of the messages included in the PDF
+     * @param generator generates the PDF. May return null if no PDF could be generated
+     * @return the PDF data, or null if no PDF could be generated
+     * @throws TimeoutException if another thread did not generate the PDF within the timeout
+     */
+    public byte[] getPdf(String key, Set<String> providerIds, Callable<byte[]> generator) throws Exception {
+        synchronized (cache) {
+            CachedPdf pdf = cache.get(key);
+            if (pdf != null) {
+                return pdf.data;
+            }
+        }
+
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        CompletableFuture<byte[]> pending = pendingPdfs.putIfAbsent(key, future);
+        if (pending != null) {
+            try {
+                return pending.get(timeoutSeconds, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+            }
+        }
+
+        try {
+            byte[] data = generator.call();
+            if (data != null) {
+                synchronized (cache) {
+                    cache.put(key, new CachedPdf(data, providerIds));
+                }
+            }
+            future.complete(data);
+            return data;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingPdfs.remove(key);
+        }
+    }
+
+    /**
+     * Evicts the cached PDF files of the provider whose messages have been updated
+     * @param event the messages updated event
+     */
+    public void messagesUpdated(@Observes MessagesUpdatedEvent event) {
+        String providerId = event.getProviderService().getProviderId();
+        synchronized (cache) {
+            int size = cache.size();
+            cache.values().removeIf(pdf -> pdf.providerIds.contains(providerId));
+            log.debug("Evicted " + (size - cache.size()) + " cached PDF files for provider " + providerId);
+        }
+    }
+
+    /**
+     * A cached PDF file
+     */
+    private static class CachedPdf {
+        final byte[] data;
+        final Set<String> providerIds;
+
+        CachedPdf(byte[] data, Set<String> providerIds) {
+            this.data = data;
+            this.providerIds = providerIds;
+        }
+    }
+}
@@ -28,6 +28,9 @@ import org.slf4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.tidy.Tidy;
 import org.xhtmlrenderer.pdf.ITextRenderer;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import javax.inject.Inject;
 import javax.servlet.ServletException;
@@ -38,16 +41,23 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 /**
@@ -60,6 +70,12 @@ public class MessageDetailsServlet extends HttpServlet {
 
     private static final String DETAILS_JSP_FILE = "/WEB-INF/jsp/details.jsp";
 
+    private static final DocumentBuilderFactory XHTML_PARSER_FACTORY = DocumentBuilderFactory.newInstance();
+    static {
+        XHTML_PARSER_FACTORY.setNamespaceAware(true);
+        XHTML_PARSER_FACTORY.setValidating(false);
+    }
+
     @Inject
     Logger log;
 
@@ -69,6 +85,15 @@ public class MessageDetailsServlet extends HttpServlet {
     @Inject
     MsiProxyApp app;
 
+    @Inject
+    MessageDetailsPdfCache pdfCache;
+
+    @Inject
+    PdfRenderExecutor pdfRenderExecutor;
+
+    @Inject
+    MessageDetailsPdfBundles pdfBundles;
+
     /**
      * Main GET method
      * @param request servlet request
@@ -87,6 +112,11 @@ public class MessageDetailsServlet extends HttpServlet {
         String activeNow = request.getParameter("activeNow");
         String areaHeadingIds = request.getParameter("areaHeadings");
 
+        // Normalize the filter parameters, so that equivalent requests share PDF cache keys and bundle files.
+        // The UI always sends "activeNow=false&areaHeadings=", whereas the bundle generation omits them
+        activeNow = "true".equals(activeNow) ? activeNow : null;
+        areaHeadingIds = StringUtils.isBlank(areaHeadingIds) ? null : areaHeadingIds;
+
         List<AbstractProviderService> providerServices = providers.getProviders(providerId);
 
         if (providerServices.size() == 0) {
@@ -130,7 +160,16 @@ public class MessageDetailsServlet extends HttpServlet {
         request.setAttribute("provider", providerId);
 
         if (request.getServletPath().endsWith("pdf")) {
-            generatePdfFile(request, response);
+            // Thumbnails embedded in the PDF must not fall back to file type icons
+            request.setAttribute("pdf", true);
+            String key = pdfCache.getKey(providerId, lang, messageId, activeNow, areaHeadingIds, messages);
+            Set<String> providerIds = providerServices.stream()
+                    .map(AbstractProviderService::getProviderId)
+                    .collect(Collectors.toSet());
+            Path bundleFile = pdfBundles.isBundled(providerId, messageId, activeNow, areaHeadingIds)
+                    ? pdfBundles.getBundleFile(providerId, key)
+                    : null;
+            servePdfFile(request, response, key, providerIds, bundleFile);
         } else {
             generateHtmlPage(request, response);
         }
@@ -158,43 +197,142 @@ public class MessageDetailsServlet extends HttpServlet {
     }
 
     /**
-     * Generates a PDF file containing the MSI message details
+     * Serves the PDF file containing the MSI message details, either from the bundle file,
+     * from the PDF cache or by generating the PDF file.
+     * <p>
+     * The cache key is used as ETag, so that clients can re-validate the PDF file
+     * without it being generated or transferred again.
+     *
+     * @param request the HTTP servlet request
+     * @param response the HTTP servlet response
+     * @param key the PDF cache key
+     * @param providerIds the IDs of the providers of the messages
+     * @param bundleFile the bundle file, or null if the PDF file is not a bundled variant
+     */
+    private void servePdfFile(HttpServletRequest request, HttpServletResponse response, String key, Set<String> providerIds, Path bundleFile) throws IOException, ServletException {
+        String etag = "\"" + key + "\"";
+        WebUtils.revalidate(response, etag);
+        if (WebUtils.isNotModified(request, etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        // Serve pre-generated bundle files as static files
+        if (bundleFile != null && Files.isRegularFile(bundleFile)) {
+            setPdfHeaders(request, response);
+            WebUtils.streamFile(request, response, bundleFile, etag);
+            return;
+        }
+
+        byte[] pdf;
+        try {
+            pdf = pdfCache.getPdf(key, providerIds, () -> {
+                byte[] data = generatePdfFile(request, response);
+                if (data != null && bundleFile != null) {
+                    pdfBundles.saveBundle(bundleFile, data);
+                }
+                return data;
+            });
+        } catch (RejectedExecutionException | TimeoutException e) {
+            response.setHeader("Retry-After", String.valueOf(pdfRenderExecutor.getRetryAfterSeconds()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "PDF generation unavailable");
+            return;
+        } catch (IOException | ServletException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ServletException(e);
+        }
+
+        // Check if there is content. Could be a redirect...
+        if (pdf == null || response.isCommitted()) {
+            return;
+        }
+
+        setPdfHeaders(request, response);
+        response.setContentLength(pdf.length);
+        response.getOutputStream().write(pdf);
+    }
+
+    /**
+     * Sets the content type and, if requested, the content disposition of a PDF response
      * @param request the HTTP servlet request
      * @param response the HTTP servlet response
      */
-    private void generatePdfFile(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+    private void setPdfHeaders(HttpServletRequest request, HttpServletResponse response) {
+        response.setContentType("application/pdf");
+        if (StringUtils.isNotBlank(request.getParameter("attachment"))) {
+            response.setHeader("Content-Disposition", "attachment; filename=" + request.getParameter("attachment"));
+        }
+    }
+
+    /**
+     * Generates a PDF file containing the MSI message details.
+     * <p>
+     * The HTML is produced on the request thread, whereas the PDF is rendered
+     * by the {@link PdfRenderExecutor}.
+     *
+     * @param request the HTTP servlet request
+     * @param response the HTTP servlet response
+     * @return the PDF file, or null if the JSP page produced no content
+     * @throws RejectedExecutionException if the PDF render pool is saturated
+     * @throws TimeoutException if the PDF rendering timed out
+     */
+    private byte[] generatePdfFile(HttpServletRequest request, HttpServletResponse response) throws Exception {
         //Capture the content for this request
         ContentCaptureServletResponse capContent = new ContentCaptureServletResponse(response);
         request.getRequestDispatcher(DETAILS_JSP_FILE).include(request, capContent);
 
         // Check if there is content. Could be a redirect...
         if (!capContent.hasContent()) {
-            return;
+            return null;
         }
 
-        try {
-            // Clean up the response HTML to a document that is readable by the XHTML renderer.
-            String content = capContent.getContent();
-            Document xhtmlContent = cleanHtml(content);
+        String content = capContent.getContent();
+        return pdfRenderExecutor.render(() -> renderPdf(content));
+    }
 
-            long t0 = System.currentTimeMillis();
-            String baseUri = app.getBaseUri();
-            log.info("Generating PDF for " + baseUri);
+    /**
+     * Renders the HTML as a PDF file
+     * @param content the HTML to render
+     * @return the PDF file
+     */
+    private byte[] renderPdf(String content) throws IOException, DocumentException {
+        Document xhtmlContent = parseXhtml(content);
 
-            ITextRenderer renderer = new ITextRenderer();
-            renderer.setDocument(xhtmlContent, baseUri);
-            renderer.layout();
+        long t0 = System.currentTimeMillis();
+        String baseUri = app.getBaseUri();
+        log.info("Generating PDF for " + baseUri);
 
-            response.setContentType("application/pdf");
-            if (StringUtils.isNotBlank(request.getParameter("attachment"))) {
-                response.setHeader("Content-Disposition", "attachment; filename=" + request.getParameter("attachment"));
-            }
-            OutputStream browserStream = response.getOutputStream();
-            renderer.createPDF(browserStream);
+        ITextRenderer renderer = new ITextRenderer();
+        renderer.setDocument(xhtmlContent, baseUri);
+        renderer.layout();
 
-            log.info("Completed PDF generation in " + (System.currentTimeMillis() - t0) + " ms");
-        } catch (DocumentException e) {
-            throw new ServletException(e);
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+        renderer.createPDF(pdf);
+
+        log.info("Completed PDF generation in " + (System.currentTimeMillis() - t0) + " ms. "
+                + "Queue depth: " + pdfRenderExecutor.getQueueDepth() + ", metrics: " + pdfRenderExecutor.getMetrics());
+        return pdf.toByteArray();
+    }
+
+    /**
+     * Parses the XHTML produced by the details JSP page.
+     * <p>
+     * The JSP page and the HTML fields of the messages are well-formed XHTML, so the
+     * content can be parsed directly. Should parsing fail anyway, the content is
+     * cleaned up using JTidy instead.
+     *
+     * @param content the XHTML to parse
+     * @return the resulting XHTML document
+     */
+    public Document parseXhtml(String content) {
+        try {
+            DocumentBuilder builder = XHTML_PARSER_FACTORY.newDocumentBuilder();
+            builder.setErrorHandler(new DefaultHandler());
+            return builder.parse(new InputSource(new StringReader(content)));
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            log.warn("Content is not well-formed XHTML. Cleaning up using JTidy: " + e.getMessage());
+            return cleanHtml(content);
         }
     }
 
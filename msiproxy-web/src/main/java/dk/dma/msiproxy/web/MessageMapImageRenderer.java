@@ -0,0 +1,399 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import dk.dma.msiproxy.common.provider.AbstractProviderService;
+import dk.dma.msiproxy.common.provider.MessagesUpdatedEvent;
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import dk.dma.msiproxy.model.msi.Location;
+import dk.dma.msiproxy.model.msi.Message;
+import org.slf4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.imageio.ImageIO;
+import javax.inject.Inject;
+import javax.servlet.ServletContext;
+import java.awt.Image;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Renders the map images of messages into the message repository folders.
+ * <p>
+ * When a provider publishes new or changed messages, the map images of these messages
+ * are pre-rendered in the background by a bounded worker pool, where the most recently
+ * updated messages are rendered first. Hence, requests for map images will normally
+ * find an existing image file.
+ * <p>
+ * The metadata of rendered image files is kept in an in-memory index keyed by
+ * provider, message id and message update time, so that the image files can be
+ * served without checking the file system first.
+ */
+@ApplicationScoped
+public class MessageMapImageRenderer {
+
+    static final int MAX_QUEUE_SIZE = 1000;
+    static final int LOCK_STRIPES = 64;
+
+    private static Image msiImage, nmImage;
+
+    @Inject
+    Logger log;
+
+    @Inject
+    MapImageProducer mapImageProducer;
+
+    @Inject
+    ServletContext servletContext;
+
+    @Inject
+    @Setting(value = "mapImagePreRenderThreads", defaultValue = "2")
+    Long preRenderThreads;
+
+    private ThreadPoolExecutor preRenderPool;
+    private final AtomicLong taskSequence = new AtomicLong();
+    private final Set<String> pendingTasks = ConcurrentHashMap.newKeySet();
+    private final Object[] renderLocks = new Object[LOCK_STRIPES];
+    private final Map<String, MapImageInfo> imageIndex = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            renderLocks[i] = new Object();
+        }
+        preRenderPool = new ThreadPoolExecutor(
+                preRenderThreads.intValue(),
+                preRenderThreads.intValue(),
+                0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>());
+    }
+
+    @PreDestroy
+    private void closeDown() {
+        if (preRenderPool != null && !preRenderPool.isShutdown()) {
+            preRenderPool.shutdownNow();
+            preRenderPool = null;
+        }
+    }
+
+    /**
+     * Returns the name of the map image files
+     * @return the name of the map image files
+     */
+    public String getImageName() {
+        return String.format("map_%d.png", mapImageProducer.getMapImageSize());
+    }
+
+    /**
+     * Returns the repository path of the map image for the given message
+     * @param providerService the provider service of the message
+     * @param id the message id
+     * @return the repository path of the map image
+     */
+    public Path getImageRepoPath(AbstractProviderService providerService, Integer id) throws IOException {
+        return providerService.getMessageRepoFolder(id).resolve(getImageName());
+    }
+
+    /**
+     * Returns if the map image file exists and is at least as new as the message
+     * @param imageRepoPath the map image file
+     * @param message the message
+     * @return if the map image file is up-to-date
+     */
+    public boolean isMapImageUpToDate(Path imageRepoPath, Message message) throws IOException {
+        return Files.exists(imageRepoPath) &&
+                message.getUpdated().getTime() <= Files.getLastModifiedTime(imageRepoPath).toMillis();
+    }
+
+    /**
+     * Returns the metadata of the up-to-date map image file of the message.
+     * Renders the map image if necessary.
+     * @param providerService the provider service of the message
+     * @param message the message
+     * @return the map image metadata, or null if no map image could be rendered
+     */
+    public MapImageInfo getMapImageInfo(AbstractProviderService providerService, Message message) throws IOException {
+        MapImageInfo info = getIndexedMapImageInfo(providerService, message);
+        if (info != null) {
+            return info;
+        }
+
+        if (!renderMapImage(providerService, message)) {
+            return null;
+        }
+
+        Path imageRepoPath = getImageRepoPath(providerService, message.getId());
+        BasicFileAttributes attrs = Files.readAttributes(imageRepoPath, BasicFileAttributes.class);
+        info = new MapImageInfo(
+                imageRepoPath,
+                message.getId(),
+                message.getUpdated().getTime(),
+                attrs.lastModifiedTime().toMillis(),
+                attrs.size());
+        imageIndex.put(getIndexKey(providerService, message.getId()), info);
+        return info;
+    }
+
+    /**
+     * Returns the metadata of the map image file of the message, if it has already
+     * been rendered for the current version of the message. Never renders the map image.
+     * @param providerService the provider service of the message
+     * @param message the message
+     * @return the map image metadata, or null if not rendered yet
+     */
+    public MapImageInfo getIndexedMapImageInfo(AbstractProviderService providerService, Message message) {
+        MapImageInfo info = imageIndex.get(getIndexKey(providerService, message.getId()));
+        return info != null && info.getMessageUpdated() == message.getUpdated().getTime() ? info : null;
+    }
+
+    /**
+     * Removes the map image metadata of the message from the index,
+     * e.g. if the image file turns out to be missing
+     * @param providerService the provider service of the message
+     * @param id the message id
+     */
+    public void evictMapImageInfo(AbstractProviderService providerService, Integer id) {
+        imageIndex.remove(getIndexKey(providerService, id));
+    }
+
+    /**
+     * Returns the key of the map image in the index
+     * @param providerService the provider service of the message
+     * @param id the message id
+     * @return the key of the map image
+     */
+    private String getIndexKey(AbstractProviderService providerService, Integer id) {
+        return providerService.getProviderId() + "_" + id;
+    }
+
+    /**
+     * Renders the map image of the message, unless an up-to-date image file already exists
+     * @param providerService the provider service of the message
+     * @param message the message
+     * @return if an up-to-date image file exists after the call
+     */
+    public boolean renderMapImage(AbstractProviderService providerService, Message message) throws IOException {
+        Path imageRepoPath = getImageRepoPath(providerService, message.getId());
+
+        // Prevent concurrent rendering of the same image file
+        synchronized (renderLocks[Math.abs(imageRepoPath.hashCode() % LOCK_STRIPES)]) {
+            if (isMapImageUpToDate(imageRepoPath, message)) {
+                return true;
+            }
+
+            // Do not render the map image without the symbol image
+            Image pointIndicator = getMessageImage(message);
+            if (pointIndicator == null) {
+                return false;
+            }
+
+            // We need to construct the image from the message locations
+            List<Location> locations = getMessageLocations(message);
+            return locations.size() > 0 && mapImageProducer.createMapImage(
+                    locations,
+                    imageRepoPath,
+                    pointIndicator,
+                    message.getUpdated());
+        }
+    }
+
+    /**
+     * Called when a provider has published new or changed messages.
+     * Queues the messages for pre-rendering of their map images
+     * @param event the messages updated event
+     */
+    public void messagesUpdated(@Observes MessagesUpdatedEvent event) {
+        AbstractProviderService providerService = event.getProviderService();
+        event.getChangedMessages().stream()
+                .filter(msg -> getMessageLocations(msg).size() > 0)
+                .forEach(msg -> {
+                    String key = getIndexKey(providerService, msg.getId());
+                    imageIndex.remove(key);
+                    if (preRenderPool.getQueue().size() < MAX_QUEUE_SIZE && pendingTasks.add(key)) {
+                        preRenderPool.execute(new PreRenderTask(key, providerService, msg));
+                    }
+                });
+        log.info("Queued map images for pre-rendering: " + preRenderPool.getQueue().size());
+    }
+
+    /**
+     * Extracts the locations from the message
+     * @param message the message
+     * @return the list of locations
+     */
+    public List<Location> getMessageLocations(Message message) {
+        List<Location> result = new ArrayList<>();
+        if (message != null && message.getLocations() != null) {
+            result.addAll(message.getLocations()
+                    .stream()
+                    .filter(location -> location.getPoints().size() > 0)
+                    .collect(Collectors.toList()));
+        }
+        return result;
+    }
+
+    /**
+     * Depending on the type of message, return an MSI or an NM image
+     * @param message the  message
+     * @return the corresponding image
+     */
+    public Image getMessageImage(Message message) {
+        return message.getType().isMsi() ? getMsiImage() : getNmImage();
+    }
+
+    /**
+     * Returns the MSI symbol image
+     * @return the MSI symbol image
+     */
+    private synchronized Image getMsiImage() {
+        if (msiImage == null) {
+            msiImage = loadSymbolImage("/img/msi.png");
+        }
+        return msiImage;
+    }
+
+    /**
+     * Returns the NM symbol image
+     * @return the NM symbol image
+     */
+    private synchronized Image getNmImage() {
+        if (nmImage == null) {
+            nmImage = loadSymbolImage("/img/nm.png");
+        }
+        return nmImage;
+    }
+
+    /**
+     * Loads the symbol image directly from the web application resources, rather than
+     * over HTTP, since the pre-rendering may start before the application serves requests
+     * @param path the resource path of the symbol image
+     * @return the symbol image, or null if it could not be loaded
+     */
+    private Image loadSymbolImage(String path) {
+        try (InputStream in = servletContext.getResourceAsStream(path)) {
+            if (in != null) {
+                return ImageIO.read(in);
+            }
+            log.error("Symbol image not found " + path);
+        } catch (IOException e) {
+            log.error("Failed loading symbol image " + path + ": " + e);
+        }
+        return null;
+    }
+
+    /**
+     * The metadata of a rendered map image file
+     */
+    public static class MapImageInfo {
+
+        final Path path;
+        final Integer messageId;
+        final long messageUpdated;
+        final long lastModified;
+        final long size;
+        final String etag;
+
+        public MapImageInfo(Path path, Integer messageId, long messageUpdated, long lastModified, long size) {
+            this.path = path;
+            this.messageId = messageId;
+            this.messageUpdated = messageUpdated;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.etag = "\"" + lastModified + "_" + size + "\"";
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public Integer getMessageId() {
+            return messageId;
+        }
+
+        public long getMessageUpdated() {
+            return messageUpdated;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+    }
+
+    /**
+     * Pre-renders the map image of a message.
+     * The most recently updated messages are rendered first.
+     */
+    class PreRenderTask implements Runnable, Comparable<PreRenderTask> {
+
+        final String key;
+        final AbstractProviderService providerService;
+        final Message message;
+        final long sequence = taskSequence.incrementAndGet();
+
+        public PreRenderTask(String key, AbstractProviderService providerService, Message message) {
+            this.key = key;
+            this.providerService = providerService;
+            this.message = message;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            try {
+                getMapImageInfo(providerService, message);
+            } catch (Exception e) {
+                log.warn("Error pre-rendering map image for message " + key + ": " + e);
+            } finally {
+                pendingTasks.remove(key);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int compareTo(PreRenderTask other) {
+            int result = Long.compare(other.message.getUpdated().getTime(), message.getUpdated().getTime());
+            return (result != 0) ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
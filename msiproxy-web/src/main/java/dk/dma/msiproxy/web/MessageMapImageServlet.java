@@ -15,34 +15,35 @@
  */
 package dk.dma.msiproxy.web;
 
-import dk.dma.msiproxy.common.MsiProxyApp;
 import dk.dma.msiproxy.common.provider.AbstractProviderService;
 import dk.dma.msiproxy.common.provider.Providers;
-import dk.dma.msiproxy.model.msi.Location;
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import dk.dma.msiproxy.common.util.WebUtils;
 import dk.dma.msiproxy.model.msi.Message;
 import org.slf4j.Logger;
 
-import javax.imageio.ImageIO;
 import javax.inject.Inject;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.awt.Image;
 import java.io.IOException;
-import java.net.URL;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 /**
  * Returns and caches a thumbnail image for a message.
  * <p></p>
  * Can be used e.g. for a grid layout in search results.
+ * <p></p>
+ * By default, the image files are served directly with ETag, Last-Modified and Cache-Control headers.
+ * If the "mapImageDirectServe" setting is false, the client is redirected to the repository instead.
+ * <p></p>
+ * Map images that have not been pre-rendered are rendered asynchronously by the {@link ImageRequestExecutor},
+ * since rendering involves fetching map data from remote servers.
  */
 @WebServlet(value = "/message-map-image/*", asyncSupported = true)
 public class MessageMapImageServlet extends HttpServlet {
@@ -50,8 +51,6 @@ public class MessageMapImageServlet extends HttpServlet {
     static final String IMAGE_PLACEHOLDER = "/img/map_image_placeholder.png";
     static final Pattern URI_PATTERN = Pattern.compile("/(\\S+)/(\\d+)\\.png");
 
-    private static Image msiImage, nmImage;
-
     @Inject
     Logger log;
 
@@ -59,10 +58,18 @@ public class MessageMapImageServlet extends HttpServlet {
     Providers providers;
 
     @Inject
-    MsiProxyApp app;
+    MessageMapImageRenderer mapImageRenderer;
+
+    @Inject
+    ImageRequestExecutor imageRequestExecutor;
 
     @Inject
-    MapImageProducer mapImageProducer;
+    @Setting(value = "mapImageDirectServe", defaultValue = "true")
+    boolean directServe;
+
+    @Inject
+    @Setting(value = "mapImageCacheSeconds", defaultValue = "3600")
+    Long cacheSeconds;
 
     /**
      * Main GET method
@@ -86,14 +93,9 @@ public class MessageMapImageServlet extends HttpServlet {
                 throw new IllegalArgumentException("Invalid MSI provider: " + providerId);
             }
 
-            // Construct the image file name for the message
-            String imageName = String.format("map_%d.png", mapImageProducer.getMapImageSize());
-
             // Compute the path and URI for the image file
-            Path messageRepoFolder = providerService.getMessageRepoFolder(id);
-            Path imageRepoPath = messageRepoFolder.resolve(imageName);
-            String uri = providerService.getMessageFileRepoUri(id, imageName);
-            boolean imageFileExists = Files.exists(imageRepoPath);
+            Path imageRepoPath = mapImageRenderer.getImageRepoPath(providerService, id);
+            String uri = providerService.getMessageFileRepoUri(id, mapImageRenderer.getImageName());
 
             // Look up the message
             Message message = providerService.getMessage(id);
@@ -101,7 +103,7 @@ public class MessageMapImageServlet extends HttpServlet {
             // Handle the case where the message does not exist
             if (message == null) {
                 // This may be because the message is not active anymore. Check if the image still exists
-                if (imageFileExists) {
+                if (Files.exists(imageRepoPath)) {
                     response.sendRedirect(uri);
                     return;
                 }
@@ -109,29 +111,33 @@ public class MessageMapImageServlet extends HttpServlet {
                 throw new IllegalArgumentException("Message " + id + " does not exist");
             }
 
-            // If the modification date of the message matches the image file - use it
-            if (imageFileExists && message.getUpdated().getTime() <= Files.getLastModifiedTime(imageRepoPath).toMillis()) {
+            // Normally, the image has been pre-rendered
+            if (directServe) {
+                MessageMapImageRenderer.MapImageInfo info = mapImageRenderer.getIndexedMapImageInfo(providerService, message);
+                if (info != null && serveMapImage(request, response, providerService, info)) {
+                    return;
+                }
+            } else if (mapImageRenderer.isMapImageUpToDate(imageRepoPath, message)) {
                 response.sendRedirect(uri);
                 return;
             }
 
-            // We need to construct hte image from the message locations
-            List<Location> locations = getMessageLocations(message);
-            if (locations.size() > 0) {
-
-                imageFileExists = mapImageProducer.createMapImage(
-                        locations,
-                        imageRepoPath,
-                        getMessageImage(message),
-                        message.getUpdated());
-
-                // Either return the image file, or a place holder image
-                if (imageFileExists) {
+            // Render the map image without blocking the request thread on remote I/O
+            imageRequestExecutor.execute(request, response, IMAGE_PLACEHOLDER, () -> {
+                if (directServe) {
+                    MessageMapImageRenderer.MapImageInfo info = mapImageRenderer.getMapImageInfo(providerService, message);
+                    return info == null ? null : res -> {
+                        if (!serveMapImage(request, res, providerService, info)) {
+                            res.sendRedirect(IMAGE_PLACEHOLDER);
+                        }
+                    };
+                } else if (mapImageRenderer.renderMapImage(providerService, message)) {
                     // Redirect the the repository streaming service
-                    response.sendRedirect(uri);
-                    return;
+                    return res -> res.sendRedirect(uri);
                 }
-            }
+                return null;
+            });
+            return;
 
         } catch (Exception ex) {
             log.warn("Error fetching map image for message: " + ex);
@@ -142,60 +148,33 @@ public class MessageMapImageServlet extends HttpServlet {
     }
 
     /**
-     * Extracts the locations from the message
-     * @param message the message
-     * @return the list of locations
-     */
-    public List<Location> getMessageLocations(Message message) {
-        List<Location> result = new ArrayList<>();
-        if (message != null && message.getLocations() != null) {
-            result.addAll(message.getLocations()
-                    .stream()
-                    .filter(location -> location.getPoints().size() > 0)
-                    .collect(Collectors.toList()));
-        }
-        return result;
-    }
-
-    /**
-     * Depending on the type of message, return an MSI or an NM image
-     * @param message the  message
-     * @return the corresponding image
-     */
-    public Image getMessageImage(Message message) {
-        return message.getType().isMsi() ? getMsiImage() : getNmImage();
-    }
-
-    /**
-     * Returns the MSI symbol image
-     * @return the MSI symbol image
+     * Serves the map image file directly, or a 304 status if the client has a current copy.
+     * Returns false if the indexed image file no longer exists.
+     * @param request servlet request
+     * @param response servlet response
+     * @param providerService the provider service of the message
+     * @param info the map image metadata
+     * @return if the map image was served
      */
-    private synchronized Image getMsiImage() {
-        if (msiImage == null) {
-            String imageUrl = app.getBaseUri() + "/img/msi.png";
-            try {
-                msiImage = ImageIO.read(new URL(imageUrl));
-            } catch (IOException e) {
-                log.error("This should never happen - could not load image from " + imageUrl);
-            }
+    private boolean serveMapImage(HttpServletRequest request, HttpServletResponse response,
+                                  AbstractProviderService providerService,
+                                  MessageMapImageRenderer.MapImageInfo info) throws IOException {
+        WebUtils.cache(response, cacheSeconds.intValue(), info.getETag(), info.getLastModified());
+        if (WebUtils.isNotModified(request, info.getETag(), info.getLastModified())) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
         }
-        return msiImage;
-    }
-
 
-    /**
-     * Returns the MSI symbol image
-     * @return the MSI symbol image
-     */
-    private synchronized Image getNmImage() {
-        if (nmImage == null) {
-            String imageUrl = app.getBaseUri() + "/img/nm.png";
-            try {
-                nmImage = ImageIO.read(new URL(imageUrl));
-            } catch (IOException e) {
-                log.error("This should never happen - could not load image from " + imageUrl);
-            }
+        response.setContentType("image/png");
+        response.setContentLengthLong(info.getSize());
+        try {
+            Files.copy(info.getPath(), response.getOutputStream());
+        } catch (NoSuchFileException e) {
+            // The image file has been deleted since it was indexed
+            mapImageRenderer.evictMapImageInfo(providerService, info.getMessageId());
+            response.reset();
+            return false;
         }
-        return nmImage;
+        return true;
     }
 }
@@ -0,0 +1,215 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import org.slf4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders PDF files on a dedicated bounded worker pool.
+ * <p>
+ * PDF rendering is CPU intensive, so the number of concurrent renderings is limited by the
+ * "pdfRenderThreads" setting, and at most "pdfRenderQueueSize" renderings may wait for a
+ * worker. When the pool is saturated, {@link #render(Callable)} fails immediately with a
+ * {@code RejectedExecutionException}, which should be reported to the client as
+ * "503 Service Unavailable" with a "Retry-After" header of {@link #getRetryAfterSeconds()}.
+ * <p>
+ * Renderings that do not complete within "pdfRenderTimeoutSeconds", e.g. because an image
+ * referenced by the PDF cannot be fetched, are cancelled and fail with a {@code TimeoutException},
+ * which should be reported in the same way.
+ */
+@ApplicationScoped
+public class PdfRenderExecutor {
+
+    @Inject
+    Logger log;
+
+    @Inject
+    @Setting(value = "pdfRenderThreads", defaultValue = "2")
+    Long threads;
+
+    @Inject
+    @Setting(value = "pdfRenderQueueSize", defaultValue = "10")
+    Long queueSize;
+
+    @Inject
+    @Setting(value = "pdfRenderRetryAfterSeconds", defaultValue = "30")
+    Long retryAfterSeconds;
+
+    @Inject
+    @Setting(value = "pdfRenderTimeoutSeconds", defaultValue = "60")
+    Long timeoutSeconds;
+
+    private ThreadPoolExecutor pool;
+    private final RenderMetrics metrics = new RenderMetrics();
+
+    @PostConstruct
+    private void init() {
+        pool = new ThreadPoolExecutor(
+                threads.intValue(),
+                threads.intValue(),
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize.intValue()));
+    }
+
+    @PreDestroy
+    private void closeDown() {
+        if (pool != null && !pool.isShutdown()) {
+            log.info("Closing PDF render pool. Metrics: " + metrics);
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Renders a PDF file on a worker thread and waits for the result
+     *
+     * @param task renders the PDF file
+     * @return the result of the render task
+     * @throws RejectedExecutionException if the worker pool is saturated
+     * @throws TimeoutException if the rendering did not complete within the timeout
+     */
+    public <T> T render(Callable<T> task) throws Exception {
+        Future<T> future;
+        try {
+            future = pool.submit(() -> {
+                long t0 = System.currentTimeMillis();
+                try {
+                    return task.call();
+                } finally {
+                    metrics.record(System.currentTimeMillis() - t0);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.rejected.incrementAndGet();
+            log.warn("PDF render pool saturated. Queue depth: " + pool.getQueue().size());
+            throw e;
+        }
+
+        try {
+            return future.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            metrics.timedOut.incrementAndGet();
+            log.warn("PDF rendering timed out after " + timeoutSeconds + " seconds");
+            throw e;
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of seconds clients should wait before retrying a rejected request
+     * @return the number of seconds clients should wait before retrying a rejected request
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Returns the number of seconds to wait for a rendering
+     * @return the number of seconds to wait for a rendering
+     */
+    public long getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    /**
+     * Returns the number of renderings waiting for a worker
+     * @return the number of renderings waiting for a worker
+     */
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Returns the number of renderings in progress
+     * @return the number of renderings in progress
+     */
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * Returns the render metrics
+     * @return the render metrics
+     */
+    public RenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * PDF render metrics
+     */
+    public static class RenderMetrics {
+        final AtomicLong renderings = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong timedOut = new AtomicLong();
+        final AtomicLong totalMillis = new AtomicLong();
+        final AtomicLong maxMillis = new AtomicLong();
+
+        void record(long millis) {
+            renderings.incrementAndGet();
+            totalMillis.addAndGet(millis);
+            maxMillis.accumulateAndGet(millis, Math::max);
+        }
+
+        public long getRenderings() {
+            return renderings.get();
+        }
+
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        public long getTimedOut() {
+            return timedOut.get();
+        }
+
+        public long getAverageMillis() {
+            long count = renderings.get();
+            return count == 0 ? 0 : totalMillis.get() / count;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("{renderings=%d, rejected=%d, timedOut=%d, avgMs=%d, maxMs=%d}",
+                    getRenderings(), getRejected(), getTimedOut(), getAverageMillis(), getMaxMillis());
+        }
+    }
+}
@@ -42,7 +42,7 @@ import java.io.IOException;
  *     RequestHeader set originalScheme "https"
  * </pre>
  */
-@WebFilter(urlPatterns={"/*"})
+@WebFilter(urlPatterns={"/*"}, asyncSupported = true)
 public class SendRedirectFilter  implements Filter {
 
     /**
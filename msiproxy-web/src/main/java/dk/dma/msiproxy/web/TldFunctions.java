@@ -21,13 +21,30 @@ import dk.dma.msiproxy.model.msi.Area;
 import dk.dma.msiproxy.model.msi.Message;
 import org.apache.commons.lang.StringUtils;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Defines a set of TLD functions that may be used on a JSP page
  */
 public class TldFunctions {
 
+    static final int MAX_XHTML_CACHE_MESSAGES = 2000;
+
+    /**
+     * The XHTML versions of the HTML fields of the most recently rendered messages
+     */
+    static final Map<String, XhtmlFields> XHTML_CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, XhtmlFields>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, XhtmlFields> eldest) {
+                    return size() > MAX_XHTML_CACHE_MESSAGES;
+                }
+            });
+
     /**
      * Returns the area heading to display for a message
      * @param msg the message
@@ -126,4 +143,39 @@ public class TldFunctions {
     public static String txt2html(String txt) {
         return TextUtils.txt2html(txt);
     }
+
+    /**
+     * Converts the given HTML field of the message to well-formed XHTML, as required when
+     * the details page is rendered as PDF. The result is memoized by the message ID and
+     * update time, so each field is only converted once per message version.
+     * @param msg the message
+     * @param html the HTML field of the message
+     * @return the XHTML
+     */
+    public static String html2xhtml(Message msg, String html) {
+        if (StringUtils.isBlank(html) || msg == null || msg.getId() == null) {
+            return TextUtils.html2xhtml(html);
+        }
+
+        String key = msg.getProvider() + "_" + msg.getId();
+        long updated = msg.getUpdated() == null ? 0L : msg.getUpdated().getTime();
+        XhtmlFields fields = XHTML_CACHE.get(key);
+        if (fields == null || fields.updated != updated) {
+            fields = new XhtmlFields(updated);
+            XHTML_CACHE.put(key, fields);
+        }
+        return fields.xhtml.computeIfAbsent(html, TextUtils::html2xhtml);
+    }
+
+    /**
+     * The XHTML versions of the HTML fields of a message version, mapped by the HTML
+     */
+    static class XhtmlFields {
+        final long updated;
+        final Map<String, String> xhtml = new ConcurrentHashMap<>();
+
+        XhtmlFields(long updated) {
+            this.updated = updated;
+        }
+    }
 }
@@ -0,0 +1,134 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Masks out the colours that makes the current Danish WMS service unusable
+ * as an overlay, by making them transparent.
+ */
+public class WmsImageMask {
+
+    // The color we want transparent
+    final static Color[]    MASKED_COLORS   = { Color.WHITE, new Color(221, 241, 239) };
+    final static int[]      MASKED_RGB      = Arrays.stream(MASKED_COLORS)
+            .flatMapToInt(c -> IntStream.of(c.getRed(), c.getGreen(), c.getBlue()))
+            .toArray();
+    final static int        COLOR_DIST      = 20;
+
+    private WmsImageMask() {
+    }
+
+    /**
+     * Masks out white colour.
+     * <p>
+     * Indexed images are masked by making the matching palette entries transparent.
+     * All other images are converted to {@code TYPE_INT_ARGB}, if necessary, and
+     * masked directly in the pixel array of the raster.
+     *
+     * @param image the image to mask out
+     * @return the resulting image
+     */
+    public static BufferedImage transformWhiteToTransparent(BufferedImage image) {
+
+        if (image.getColorModel() instanceof IndexColorModel) {
+            return transformPalette(image, (IndexColorModel) image.getColorModel());
+        }
+
+        BufferedImage dest = image;
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB || !isPackedRaster(image)) {
+            dest = new BufferedImage(image.getWidth(null), image.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2 = dest.createGraphics();
+            g2.drawImage(image, 0, 0, null);
+            g2.dispose();
+
+            image.flush();
+        }
+
+        // Mask out the white pixels
+        int[] imgData = ((DataBufferInt) dest.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < imgData.length; i++) {
+            if (isMasked(imgData[i])) {
+                imgData[i] &= 0x00FFFFFF;
+            }
+        }
+        return dest;
+    }
+
+    /**
+     * Masks out white colour of an indexed image by making the matching palette entries transparent.
+     * The pixel data is shared with the original image.
+     *
+     * @param image the image to mask out
+     * @param cm the color model of the image
+     * @return the resulting image
+     */
+    private static BufferedImage transformPalette(BufferedImage image, IndexColorModel cm) {
+        int size = cm.getMapSize();
+        int[] palette = new int[size];
+        cm.getRGBs(palette);
+        for (int i = 0; i < size; i++) {
+            if (isMasked(palette[i])) {
+                palette[i] &= 0x00FFFFFF;
+            }
+        }
+        IndexColorModel dest = new IndexColorModel(
+                cm.getPixelSize(), size, palette, 0, true, -1, cm.getTransferType());
+        return new BufferedImage(dest, image.getRaster(), image.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Returns if the raster of the image is a single, contiguous int array with one pixel per element
+     * @param image the image to check
+     * @return if the raster of the image is a single, contiguous int array
+     */
+    private static boolean isPackedRaster(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        return raster.getDataBuffer() instanceof DataBufferInt &&
+                raster.getParent() == null &&
+                raster.getDataBuffer().getNumBanks() == 1 &&
+                raster.getDataBuffer().getOffset() == 0 &&
+                raster.getSampleModel() instanceof SinglePixelPackedSampleModel &&
+                ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == raster.getWidth() &&
+                raster.getDataBuffer().getSize() == raster.getWidth() * raster.getHeight();
+    }
+
+    /**
+     * Returns if the RGB colour is within the masking distance of one of the masked colours
+     * @param rgb the RGB colour
+     * @return if the colour should be masked out
+     */
+    private static boolean isMasked(int rgb) {
+        int r = rgb >> 16 & 0xFF;
+        int g = rgb >> 8 & 0xFF;
+        int b = rgb & 0xFF;
+        for (int i = 0; i < MASKED_RGB.length; i += 3) {
+            if (Math.abs(MASKED_RGB[i] - r) + Math.abs(MASKED_RGB[i + 1] - g) + Math.abs(MASKED_RGB[i + 2] - b) <= COLOR_DIST) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,304 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import org.slf4j.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.imageio.ImageIO;
+import javax.inject.Inject;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads WMS tiles in blocks of NxN tiles, known as metatiles.
+ * <p>
+ * Map clients request many adjacent tiles at the same time. Rather than forwarding each
+ * tile request to the WMS server, the metatile containing the tile is fetched in a single
+ * request, masked once and sliced into tiles, which are all stored in the {@link WmsTileCache}.
+ * Concurrent requests for tiles of the same metatile wait for the same metatile request.
+ * <p>
+ * The metatile size is defined by the "wmsMetaTileSize" setting. A size of 1 disables metatiling.
+ * Metatiling is only used for tile requests aligned to a regular grid of the tile size,
+ * which is the case for the tiled WMS layers of e.g. OpenLayers.
+ */
+@ApplicationScoped
+public class WmsMetaTiler {
+
+    static final double GRID_TOLERANCE = 1e-6;
+    static final long METATILE_TIMEOUT_MS = 60000L;
+
+    @Inject
+    Logger log;
+
+    @Inject
+    WmsTileCache wmsTileCache;
+
+    @Inject
+    @Setting(value = "wmsMetaTileSize", defaultValue = "1")
+    Long metaTileSize;
+
+    private final Map<String, CompletableFuture<Map<String, byte[]>>> pendingMetaTiles = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the metatile containing the tile defined by the given WMS request parameters,
+     * or null if metatiling is disabled or not applicable for the request
+     *
+     * @param params the WMS request parameters
+     * @return the metatile containing the requested tile, or null
+     */
+    public MetaTile getMetaTile(Map<String, String[]> params) {
+        int n = metaTileSize.intValue();
+        if (n <= 1) {
+            return null;
+        }
+
+        try {
+            int width = Integer.parseInt(getParam(params, "WIDTH"));
+            int height = Integer.parseInt(getParam(params, "HEIGHT"));
+            String[] bbox = getParam(params, "BBOX").split(",");
+            if (bbox.length != 4) {
+                return null;
+            }
+            double minX = Double.parseDouble(bbox[0]);
+            double minY = Double.parseDouble(bbox[1]);
+            double dx = Double.parseDouble(bbox[2]) - minX;
+            double dy = Double.parseDouble(bbox[3]) - minY;
+
+            // Check that the tile is aligned to the tile grid
+            long col = Math.round(minX / dx);
+            long row = Math.round(minY / dy);
+            if (dx <= 0 || dy <= 0 ||
+                    Math.abs(minX / dx - col) > GRID_TOLERANCE ||
+                    Math.abs(minY / dy - row) > GRID_TOLERANCE) {
+                return null;
+            }
+
+            return new MetaTile(params, n, width, height, dx, dy,
+                    Math.floorDiv(col, n) * n,
+                    Math.floorDiv(row, n) * n);
+
+        } catch (NullPointerException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the requested tile of the metatile. If another thread is already loading the
+     * metatile, waits for that thread. Otherwise the metatile is loaded using the image loader,
+     * and all its tiles are stored in the tile cache.
+     *
+     * @param metaTile the metatile
+     * @param key the key of the requested tile
+     * @param loader loads the masked metatile image for the given WMS request parameters
+     * @return the requested tile PNG data, or null if not available
+     */
+    public byte[] getTile(MetaTile metaTile, String key, ImageLoader loader) throws Exception {
+        CompletableFuture<Map<String, byte[]>> future = new CompletableFuture<>();
+        CompletableFuture<Map<String, byte[]>> pending = pendingMetaTiles.putIfAbsent(metaTile.getKey(), future);
+
+        if (pending != null) {
+            try {
+                return pending.get(METATILE_TIMEOUT_MS, TimeUnit.MILLISECONDS).get(key);
+            } catch (ExecutionException e) {
+                throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+            }
+        }
+
+        try {
+            Map<String, byte[]> tiles = loadMetaTile(metaTile, loader);
+            future.complete(tiles);
+            return tiles.get(key);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingMetaTiles.remove(metaTile.getKey());
+        }
+    }
+
+    /**
+     * Loads the metatile, slices it into tiles and stores the tiles in the tile cache
+     *
+     * @param metaTile the metatile
+     * @param loader loads the masked metatile image for the given WMS request parameters
+     * @return the tiles of the metatile, indexed by tile key
+     */
+    private Map<String, byte[]> loadMetaTile(MetaTile metaTile, ImageLoader loader) throws Exception {
+        long t0 = System.currentTimeMillis();
+        Map<String, byte[]> tiles = new HashMap<>();
+
+        BufferedImage image = loader.load(metaTile.getParams());
+        if (image == null) {
+            return tiles;
+        }
+
+        int n = metaTile.size;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                // Image rows run from north to south, whereas tile rows run from south to north
+                BufferedImage tileImage = image.getSubimage(
+                        i * metaTile.width,
+                        (n - 1 - j) * metaTile.height,
+                        metaTile.width,
+                        metaTile.height);
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ImageIO.write(tileImage, "png", bytes);
+
+                String tileKey = wmsTileCache.getKey(metaTile.getTileParams(i, j));
+                byte[] tile = bytes.toByteArray();
+                wmsTileCache.putTile(tileKey, tile);
+                tiles.put(tileKey, tile);
+            }
+        }
+        image.flush();
+
+        log.debug("Loaded " + n + "x" + n + " WMS metatile in " + (System.currentTimeMillis() - t0) + " ms");
+        return tiles;
+    }
+
+    /**
+     * Returns the value of the parameter with the given case-insensitive name
+     * @param params the request parameters
+     * @param name the parameter name
+     * @return the parameter value, or null if not found
+     */
+    private static String getParam(Map<String, String[]> params, String name) {
+        return params.entrySet().stream()
+                .filter(p -> p.getKey().equalsIgnoreCase(name) && p.getValue().length > 0)
+                .map(p -> p.getValue()[0])
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Loads the masked WMS image for the given request parameters
+     */
+    @FunctionalInterface
+    public interface ImageLoader {
+
+        /**
+         * Loads the masked WMS image
+         * @param params the WMS request parameters
+         * @return the masked WMS image, or null if the WMS server returned no image
+         */
+        BufferedImage load(Map<String, String[]> params) throws IOException;
+    }
+
+    /**
+     * Defines a metatile of NxN tiles
+     */
+    public static class MetaTile {
+
+        final Map<String, String[]> params;
+        final int size;
+        final int width, height;
+        final double dx, dy;
+        final long col0, row0;
+
+        MetaTile(Map<String, String[]> params, int size, int width, int height, double dx, double dy, long col0, long row0) {
+            this.params = params;
+            this.size = size;
+            this.width = width;
+            this.height = height;
+            this.dx = dx;
+            this.dy = dy;
+            this.col0 = col0;
+            this.row0 = row0;
+        }
+
+        /**
+         * Returns the WMS request parameters of the metatile
+         * @return the WMS request parameters of the metatile
+         */
+        public Map<String, String[]> getParams() {
+            return withParams(
+                    bbox(col0, row0, size),
+                    String.valueOf(width * size),
+                    String.valueOf(height * size));
+        }
+
+        /**
+         * Returns the WMS request parameters of the tile with the given offset within the metatile
+         * @param i the column offset
+         * @param j the row offset
+         * @return the WMS request parameters of the tile
+         */
+        public Map<String, String[]> getTileParams(int i, int j) {
+            return withParams(
+                    bbox(col0 + i, row0 + j, 1),
+                    String.valueOf(width),
+                    String.valueOf(height));
+        }
+
+        /**
+         * Returns a key that identifies the metatile
+         * @return a key that identifies the metatile
+         */
+        public String getKey() {
+            return String.join("|",
+                    getParam(params, "LAYERS"),
+                    getParam(params, "SRS"),
+                    getParam(params, "CRS"),
+                    getParam(params, "STYLES"),
+                    getParam(params, "FORMAT"),
+                    String.valueOf(width),
+                    String.valueOf(height),
+                    new BigDecimal(dx).round(WmsTileCache.BBOX_PRECISION).toPlainString(),
+                    new BigDecimal(dy).round(WmsTileCache.BBOX_PRECISION).toPlainString(),
+                    String.valueOf(col0),
+                    String.valueOf(row0));
+        }
+
+        /**
+         * Returns the BBOX of the given tile block
+         */
+        private String bbox(long col, long row, int n) {
+            return String.join(",",
+                    BigDecimal.valueOf(col * dx).toPlainString(),
+                    BigDecimal.valueOf(row * dy).toPlainString(),
+                    BigDecimal.valueOf((col + n) * dx).toPlainString(),
+                    BigDecimal.valueOf((row + n) * dy).toPlainString());
+        }
+
+        /**
+         * Returns a copy of the request parameters with the given BBOX, WIDTH and HEIGHT
+         */
+        private Map<String, String[]> withParams(String bbox, String width, String height) {
+            Map<String, String[]> result = new LinkedHashMap<>();
+            params.forEach((name, values) -> {
+                switch (name.toUpperCase()) {
+                    case "BBOX":    result.put(name, new String[] { bbox }); break;
+                    case "WIDTH":   result.put(name, new String[] { width }); break;
+                    case "HEIGHT":  result.put(name, new String[] { height }); break;
+                    default:        result.put(name, values);
+                }
+            });
+            return result;
+        }
+    }
+}
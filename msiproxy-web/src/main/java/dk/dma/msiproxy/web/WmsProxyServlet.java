@@ -15,58 +15,37 @@
  */
 package dk.dma.msiproxy.web;
 
-import dk.dma.msiproxy.common.settings.annotation.Setting;
 import dk.dma.msiproxy.common.util.WebUtils;
-import org.apache.commons.lang.StringUtils;
-import org.slf4j.Logger;
 
-import javax.imageio.ImageIO;
 import javax.inject.Inject;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.URL;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 /**
  * Proxy WMS data.
  *
  * This servlet will mask out a couple of colours that makes the current Danish WMS service unusable...
+ * <p>
+ * The WMS tiles are loaded and cached by the {@link WmsTileService}. Tiles that are not cached
+ * are loaded asynchronously by the {@link ImageRequestExecutor}, so that a slow WMS server does
+ * not tie up the request threads of the container.
  */
 @WebServlet(value = "/wms/*", asyncSupported = true)
 public class WmsProxyServlet extends HttpServlet {
 
-    // The color we want transparent
-    final static Color[]    MASKED_COLORS   = { Color.WHITE, new Color(221, 241, 239) };
-    final static int        COLOR_DIST      = 20;
     final static int        CACHE_TIMEOUT   =  24 * 60 * 60; // 24 hours
     static final String     BLANK_IMAGE     = "/img/blank.png";
 
     @Inject
-    Logger log;
+    ImageRequestExecutor imageRequestExecutor;
 
     @Inject
-    @Setting(value = "wmsProvider", defaultValue = "")
-    String wmsProvider;
-
-    @Inject
-    @Setting(value = "wmsServiceName", defaultValue = "")
-    String wmsServiceName;
-
-    @Inject
-    @Setting(value = "wmsLogin", defaultValue = "")
-    String wmsLogin;
-
-    @Inject
-    @Setting(value = "wmsPassword", defaultValue = "")
-    String wmsPassword;
+    WmsTileService wmsTileService;
 
     /**
      * Main GET method
@@ -80,82 +59,39 @@ public class WmsProxyServlet extends HttpServlet {
         WebUtils.cache(response, CACHE_TIMEOUT);
 
         // Check that the WMS provider has been defined using system properties
-        if (StringUtils.isBlank(wmsServiceName) || StringUtils.isBlank(wmsProvider) ||
-                StringUtils.isBlank(wmsLogin) || StringUtils.isBlank(wmsPassword)) {
+        if (!wmsTileService.isConfigured()) {
             response.sendRedirect(BLANK_IMAGE);
             return;
         }
 
         @SuppressWarnings("unchecked")
         Map<String, String[]> paramMap = (Map<String, String[]>)request.getParameterMap();
-        String params = paramMap
-                .entrySet()
-                .stream()
-                .map(p -> String.format("%s=%s", p.getKey(), p.getValue()[0]))
-                .collect(Collectors.joining("&"));
-        params += String.format("&SERVICENAME=%s&LOGIN=%s&PASSWORD=%s", wmsServiceName, wmsLogin, wmsPassword);
-
-        String url = wmsProvider + "?" + params;
-        log.trace("Loading image " + url);
-
-        try {
-            BufferedImage image = ImageIO.read(new URL(url));
-            if (image != null) {
-                image = transformWhiteToTransparent(image);
 
-                OutputStream out = response.getOutputStream();
-                ImageIO.write(image, "png", out);
-                image.flush();
-                out.close();
-                return;
-            }
-        } catch (Exception e) {
-            log.trace("Failed loading WMS image for URL " + url);
+        // Serve tiles cached in memory or on disk directly
+        String key = wmsTileService.getKey(paramMap);
+        byte[] cachedTile = wmsTileService.getCachedTile(key);
+        if (cachedTile != null) {
+            writeTile(response, cachedTile);
+            return;
         }
 
-        // Fall back to return a blank image
-        response.sendRedirect(BLANK_IMAGE);
+        // Fetch the WMS image without blocking the request thread on remote I/O
+        imageRequestExecutor.execute(request, response, BLANK_IMAGE, () -> {
+            byte[] tile = wmsTileService.getTile(key, paramMap);
+            return tile == null ? null : res -> writeTile(res, tile);
+        });
     }
 
     /**
-     * Masks out white colour
-     * @param image the image to mask out
-     * @return the resulting image
+     * Writes the PNG tile to the response
+     * @param response servlet response
+     * @param tile the PNG data
      */
-    private BufferedImage transformWhiteToTransparent(BufferedImage image) {
-
-        BufferedImage dest = image;
-        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
-            dest = new BufferedImage(image.getWidth(null), image.getHeight(null), BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g2 = dest.createGraphics();
-            g2.drawImage(image, 0, 0, null);
-            g2.dispose();
-
-            image.flush();
-        }
-
-        // Mask out the white pixels
-        final int width = image.getWidth();
-        int[] imgData = new int[width];
-
-        for (int y = 0; y < dest.getHeight(); y++) {
-            // fetch a line of data from each image
-            dest.getRGB(0, y, width, 1, imgData, 0, 1);
-            // apply the mask
-            for (int x = 0; x < width; x++) {
-                for (Color col : MASKED_COLORS) {
-                    int colDist
-                            = Math.abs(col.getRed() - (imgData[x] >> 16 & 0x000000FF))
-                            + Math.abs(col.getGreen() - (imgData[x] >> 8 & 0x000000FF))
-                            + Math.abs(col.getBlue() - (imgData[x] & 0x000000FF));
-                    if (colDist <= COLOR_DIST) {
-                        imgData[x] = 0x00FFFFFF & imgData[x];
-                    }
-                }
-            }
-            // replace the data
-            dest.setRGB(0, y, width, 1, imgData, 0, 1);
-        }
-        return dest;
+    private void writeTile(HttpServletResponse response, byte[] tile) throws IOException {
+        response.setContentType("image/png");
+        response.setContentLength(tile.length);
+        OutputStream out = response.getOutputStream();
+        out.write(tile);
+        out.close();
     }
 }
@@ -0,0 +1,294 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Seeds the WMS tile cache with the tiles of a bounding box and zoom range, so that
+ * the tiles most commonly viewed are cached before they are requested.
+ * <p>
+ * The WMS request parameters used by the map clients, except BBOX, must be defined by the
+ * "wmsSeedParams" setting, e.g. "SERVICE=WMS&amp;REQUEST=GetMap&amp;VERSION=1.1.1&amp;LAYERS=cells&amp;..."
+ * since the tiles are cached by their request parameters. Seeding is disabled if not defined.
+ * The parameters must specify the EPSG:3857 projection, i.e. "SRS=EPSG:3857" for WMS 1.1.1 or
+ * "CRS=EPSG:3857" for WMS 1.3.0, since the BBOX of each tile is computed in spherical mercator
+ * meters by {@link GlobalMercator#TileBounds}.
+ * <p>
+ * Seeding runs shortly after deployment and every night. Only tiles that are missing
+ * or expired in the disk cache are fetched, at most "wmsSeedTilesPerSecond" tiles per second.
+ */
+@Singleton
+@Startup
+@Lock(LockType.READ)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class WmsSeeder {
+
+    static final long STARTUP_DELAY_MS = 5 * 60 * 1000L;
+    static final long PROGRESS_INTERVAL_MS = 60 * 1000L;
+
+    @Inject
+    Logger log;
+
+    @Inject
+    WmsTileService wmsTileService;
+
+    @Resource
+    TimerService timerService;
+
+    @Inject
+    @Setting(value = "wmsSeedParams", defaultValue = "")
+    String seedParams;
+
+    @Inject
+    @Setting(value = "wmsSeedExtent", defaultValue = "7.5,54.4,15.5,58.0")
+    String seedExtent;
+
+    @Inject
+    @Setting(value = "wmsSeedMinZoom", defaultValue = "6")
+    Long minZoom;
+
+    @Inject
+    @Setting(value = "wmsSeedMaxZoom", defaultValue = "12")
+    Long maxZoom;
+
+    @Inject
+    @Setting(value = "wmsSeedTilesPerSecond", defaultValue = "2")
+    Long tilesPerSecond;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Schedules seeding shortly after deployment
+     */
+    @PostConstruct
+    private void init() {
+        if (isEnabled()) {
+            timerService.createSingleActionTimer(STARTUP_DELAY_MS, new TimerConfig(null, false));
+        }
+    }
+
+    /**
+     * Returns if seeding is enabled
+     * @return if seeding is enabled
+     */
+    public boolean isEnabled() {
+        return StringUtils.isNotBlank(seedParams);
+    }
+
+    /**
+     * Called shortly after deployment
+     */
+    @Timeout
+    private void startupSeed() {
+        seed();
+    }
+
+    /**
+     * Called every night
+     */
+    @Schedule(persistent = false, second = "0", minute = "30", hour = "2", dayOfWeek = "*", year = "*")
+    private void nightlySeed() {
+        seed();
+    }
+
+    /**
+     * Seeds the WMS tile cache with the tiles of the configured extent and zoom range
+     */
+    public void seed() {
+        if (!isEnabled() || !wmsTileService.isConfigured()) {
+            return;
+        }
+        if (!running.compareAndSet(false, true)) {
+            log.info("WMS seeding already running");
+            return;
+        }
+
+        try {
+            double[] extent = Arrays.stream(seedExtent.split(","))
+                    .mapToDouble(v -> Double.parseDouble(v.trim()))
+                    .toArray();
+            Map<String, String[]> params = parseParams(seedParams);
+            GlobalMercator mercator = new GlobalMercator();
+
+            SeedProgress progress = new SeedProgress();
+            for (int z = minZoom.intValue(); z <= maxZoom.intValue(); z++) {
+                progress.total += getTileCount(mercator, extent, z);
+            }
+            log.info("Start seeding " + progress.total + " WMS tiles for extent " + seedExtent
+                    + " and zoom levels " + minZoom + "-" + maxZoom);
+
+            long nanosPerTile = TimeUnit.SECONDS.toNanos(1) / Math.max(1L, tilesPerSecond);
+            for (int z = minZoom.intValue(); z <= maxZoom.intValue(); z++) {
+                int[] min = getTile(mercator, extent[1], extent[0], z);
+                int[] max = getTile(mercator, extent[3], extent[2], z);
+                for (int tx = min[0]; tx <= max[0]; tx++) {
+                    for (int ty = min[1]; ty <= max[1]; ty++) {
+                        if (!running.get()) {
+                            return;
+                        }
+                        long t0 = System.nanoTime();
+                        if (seedTile(mercator, params, tx, ty, z, progress)) {
+                            // Rate-limit the requests to the WMS server
+                            long sleepNanos = nanosPerTile - (System.nanoTime() - t0);
+                            if (sleepNanos > 0) {
+                                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                            }
+                        }
+                        progress.log(z, false);
+                    }
+                }
+            }
+            progress.log(maxZoom.intValue(), true);
+
+        } catch (InterruptedException e) {
+            log.info("WMS seeding interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("WMS seeding failed", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Stops a running seeding
+     */
+    @PreDestroy
+    public void stop() {
+        running.set(false);
+    }
+
+    /**
+     * Seeds the given tile, unless it is already cached
+     *
+     * @param mercator the mercator tile math
+     * @param params the WMS request parameters, except BBOX
+     * @param tx the TMS tile x coordinate
+     * @param ty the TMS tile y coordinate
+     * @param z the zoom level
+     * @param progress the seeding progress
+     * @return if the tile was fetched from the WMS server
+     */
+    private boolean seedTile(GlobalMercator mercator, Map<String, String[]> params, int tx, int ty, int z, SeedProgress progress) {
+        double[] bounds = mercator.TileBounds(tx, ty, z);
+        Map<String, String[]> tileParams = new LinkedHashMap<>(params);
+        tileParams.put("BBOX", new String[] { Arrays.stream(bounds)
+                .mapToObj(b -> BigDecimal.valueOf(b).toPlainString())
+                .collect(Collectors.joining(",")) });
+
+        String key = wmsTileService.getKey(tileParams);
+        if (wmsTileService.isTileCachedOnDisk(key)) {
+            progress.cached++;
+            return false;
+        }
+
+        try {
+            wmsTileService.getTile(key, tileParams);
+            progress.fetched++;
+        } catch (Exception e) {
+            log.debug("Failed seeding WMS tile " + key + ": " + e);
+            progress.failed++;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the TMS tile containing the given position
+     */
+    private int[] getTile(GlobalMercator mercator, double lat, double lon, int z) {
+        double[] m = mercator.LatLonToMeters(lat, lon);
+        return mercator.MetersToTile(m[0], m[1], z);
+    }
+
+    /**
+     * Returns the number of tiles covering the extent at the given zoom level
+     */
+    private long getTileCount(GlobalMercator mercator, double[] extent, int z) {
+        int[] min = getTile(mercator, extent[1], extent[0], z);
+        int[] max = getTile(mercator, extent[3], extent[2], z);
+        return (long) (max[0] - min[0] + 1) * (max[1] - min[1] + 1);
+    }
+
+    /**
+     * Parses the WMS request parameters of the "wmsSeedParams" setting
+     * @param params the WMS request parameters
+     * @return the parsed WMS request parameters
+     */
+    private Map<String, String[]> parseParams(String params) {
+        Map<String, String[]> result = new LinkedHashMap<>();
+        for (String param : params.split("&")) {
+            int index = param.indexOf('=');
+            if (index > 0) {
+                result.put(param.substring(0, index).trim(), new String[] { param.substring(index + 1).trim() });
+            }
+        }
+        result.keySet().removeIf("BBOX"::equalsIgnoreCase);
+        return result;
+    }
+
+    /**
+     * Tracks and logs the seeding progress and throughput
+     */
+    private class SeedProgress {
+        final long startTime = System.currentTimeMillis();
+        long lastLogTime = startTime;
+        long total, fetched, cached, failed;
+
+        void log(int z, boolean done) {
+            long now = System.currentTimeMillis();
+            if (!done && now - lastLogTime < PROGRESS_INTERVAL_MS) {
+                return;
+            }
+            lastLogTime = now;
+            long seconds = Math.max(1L, (now - startTime) / 1000L);
+            log.info(String.format("%s WMS seeding at zoom %d: %d/%d tiles (%d fetched, %d cached, %d failed) in %d s, %.2f fetched tiles/s",
+                    done ? "Completed" : "Progress of",
+                    z,
+                    fetched + cached + failed,
+                    total,
+                    fetched,
+                    cached,
+                    failed,
+                    seconds,
+                    fetched / (double) seconds));
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import dk.dma.msiproxy.common.repo.RepositoryService;
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A two-level cache of the transformed WMS tiles returned by the {@link WmsProxyServlet}.
+ * <p>
+ * Tiles are keyed by the normalized WMS request parameters and stored as PNG files in the
+ * "wms" folder of the repository, using the same hashed sub-folder layout as message files.
+ * The most recently used tiles are furthermore kept in memory.
+ * <p>
+ * Tiles older than "wmsTileMaxAgeHours" are re-fetched, but used as a fallback if the WMS
+ * server fails. An hourly sweep deletes expired tiles and, if the disk cache exceeds
+ * "wmsTileDiskCacheMaxMB", the oldest tiles.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class WmsTileCache {
+
+    static final String WMS_REPO_ROOT_FOLDER = "wms";
+    static final int LOCK_STRIPES = 64;
+    static final MathContext BBOX_PRECISION = new MathContext(10);
+
+    /** Parameters that do not affect the returned image */
+    static final Set<String> IGNORED_PARAMS = new HashSet<>(Arrays.asList("SERVICENAME", "LOGIN", "PASSWORD", "_"));
+
+    @Inject
+    Logger log;
+
+    @Inject
+    RepositoryService repositoryService;
+
+    @Inject
+    @Setting(value = "wmsTileMemoryCacheSize", defaultValue = "256")
+    Long memoryCacheSize;
+
+    @Inject
+    @Setting(value = "wmsTileMaxAgeHours", defaultValue = "168")
+    Long maxAgeHours;
+
+    @Inject
+    @Setting(value = "wmsTileDiskCacheMaxMB", defaultValue = "1024")
+    Long diskCacheMaxMB;
+
+    private final Object[] tileLocks = new Object[LOCK_STRIPES];
+    private Map<String, CachedTile> memoryCache;
+
+    /**
+     * Constructor
+     */
+    public WmsTileCache() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            tileLocks[i] = new Object();
+        }
+        memoryCache = new LinkedHashMap<String, CachedTile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedTile> eldest) {
+                return size() > memoryCacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache key for the given WMS request parameters.
+     * <p>
+     * Parameter names are upper-cased and sorted, parameters that do not affect the
+     * image are dropped, and the BBOX coordinates are normalized.
+     *
+     * @param paramMap the WMS request parameters
+     * @return the cache key
+     */
+    public String getKey(Map<String, String[]> paramMap) {
+        Map<String, String> params = new TreeMap<>();
+        paramMap.forEach((name, values) -> {
+            String key = name.toUpperCase();
+            if (!IGNORED_PARAMS.contains(key) && values.length > 0) {
+                String value = values[0].trim();
+                if ("BBOX".equals(key)) {
+                    value = normalizeBBox(value);
+                }
+                params.put(key, value);
+            }
+        });
+        return params.entrySet().stream()
+                .map(p -> p.getKey() + "=" + p.getValue())
+                .collect(Collectors.joining("&"));
+    }
+
+    /**
+     * Normalizes the BBOX coordinates, so that e.g. "10.50" and "10.5" yield the same key.
+     * The coordinates are rounded to 10 significant digits, so that computed tile
+     * coordinates match the ones requested by clients.
+     * @param bbox the BBOX parameter
+     * @return the normalized BBOX parameter
+     */
+    private String normalizeBBox(String bbox) {
+        try {
+            return Arrays.stream(bbox.split(","))
+                    .map(c -> new BigDecimal(c.trim()).round(BBOX_PRECISION).stripTrailingZeros().toPlainString())
+                    .collect(Collectors.joining(","));
+        } catch (NumberFormatException e) {
+            return bbox;
+        }
+    }
+
+    /**
+     * Returns the tile if it is cached in memory or on disk and has not expired.
+     * Never calls the WMS server.
+     *
+     * @param key the tile key
+     * @return the tile PNG data, or null if not cached
+     */
+    public byte[] getCachedTile(String key) {
+        CachedTile tile = getMemoryCachedTile(key);
+        if (tile != null) {
+            return tile.data;
+        }
+
+        try {
+            tile = readTile(getTileFile(key, false));
+            if (tile != null && !tile.isExpired()) {
+                putMemoryCachedTile(key, tile);
+                return tile.data;
+            }
+        } catch (IOException e) {
+            log.debug("Failed reading cached WMS tile " + key + ": " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns if a non-expired tile is cached on disk. Unlike {@link #getCachedTile(String)},
+     * the tile is neither read nor added to the memory cache, so that e.g. the
+     * {@link WmsSeeder} does not evict the tiles currently used by the map clients.
+     *
+     * @param key the tile key
+     * @return if a non-expired tile is cached on disk
+     */
+    public boolean isTileCachedOnDisk(String key) {
+        try {
+            long modified = Files.getLastModifiedTime(getTileFile(key, false)).toMillis();
+            return modified >= System.currentTimeMillis() - getMaxAgeMillis();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the tile with the given key. If the tile is not cached, or has expired,
+     * it is loaded using the tile loader and stored in the cache.
+     *
+     * @param key the tile key
+     * @param loader loads the tile PNG data. May return null if no tile is available
+     * @return the tile PNG data, or null if not available
+     */
+    public byte[] getTile(String key, Callable<byte[]> loader) throws Exception {
+        byte[] data = getCachedTile(key);
+        if (data != null) {
+            return data;
+        }
+
+        // Prevent concurrent loading of the same tile
+        synchronized (tileLocks[Math.abs(key.hashCode() % LOCK_STRIPES)]) {
+            data = getCachedTile(key);
+            if (data != null) {
+                return data;
+            }
+
+            Path tileFile = getTileFile(key, true);
+            try {
+                data = loader.call();
+            } catch (Exception e) {
+                // Fall back to an expired tile
+                CachedTile expiredTile = readTile(tileFile);
+                if (expiredTile == null) {
+                    throw e;
+                }
+                log.warn("Failed loading WMS tile " + key + ". Using expired tile: " + e);
+                return expiredTile.data;
+            }
+
+            // The loader may already have cached the tile, e.g. as part of a metatile
+            if (data != null && getMemoryCachedTile(key) == null) {
+                writeTile(tileFile, data);
+                putMemoryCachedTile(key, new CachedTile(data, System.currentTimeMillis()));
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Stores the tile in the cache
+     *
+     * @param key the tile key
+     * @param data the tile PNG data
+     */
+    public void putTile(String key, byte[] data) {
+        try {
+            writeTile(getTileFile(key, true), data);
+        } catch (IOException e) {
+            log.warn("Failed caching WMS tile " + key + ": " + e);
+        }
+        putMemoryCachedTile(key, new CachedTile(data, System.currentTimeMillis()));
+    }
+
+    /**
+     * Returns the disk file of the tile
+     * @param key the tile key
+     * @param createFolders whether to create the parent folders
+     * @return the disk file of the tile
+     */
+    private Path getTileFile(String key, boolean createFolders) throws IOException {
+        return repositoryService
+                .getHashedSubfolder(WMS_REPO_ROOT_FOLDER, key, false, createFolders)
+                .resolve(DigestUtils.md5Hex(key) + ".png");
+    }
+
+    /**
+     * Reads the tile from disk
+     * @param tileFile the tile file
+     * @return the tile, or null if not found
+     */
+    private CachedTile readTile(Path tileFile) throws IOException {
+        try {
+            long modified = Files.getLastModifiedTime(tileFile).toMillis();
+            return new CachedTile(Files.readAllBytes(tileFile), modified);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the tile to disk via a temporary file, so readers never see partial tiles
+     * @param tileFile the tile file
+     * @param data the tile PNG data
+     */
+    private void writeTile(Path tileFile, byte[] data) {
+        try {
+            Path tmpFile = Files.createTempFile(tileFile.getParent(), "wms", ".tmp");
+            try {
+                Files.write(tmpFile, data);
+                Files.move(tmpFile, tileFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+        } catch (IOException e) {
+            log.warn("Failed caching WMS tile " + tileFile + ": " + e);
+        }
+    }
+
+    /**
+     * Returns the non-expired tile from the memory cache, or null if not found
+     * @param key the tile key
+     * @return the tile from the memory cache
+     */
+    private CachedTile getMemoryCachedTile(String key) {
+        synchronized (memoryCache) {
+            CachedTile tile = memoryCache.get(key);
+            if (tile != null && tile.isExpired()) {
+                memoryCache.remove(key);
+                return null;
+            }
+            return tile;
+        }
+    }
+
+    /**
+     * Adds the tile to the memory cache
+     * @param key the tile key
+     * @param tile the tile
+     */
+    private void putMemoryCachedTile(String key, CachedTile tile) {
+        synchronized (memoryCache) {
+            memoryCache.put(key, tile);
+        }
+    }
+
+    /**
+     * Deletes expired tiles from the disk cache, and then the oldest tiles
+     * until the disk cache is within the maximum size.
+     * <p>
+     * Runs every hour
+     */
+    @Schedule(persistent = false, second = "0", minute = "43", hour = "*", dayOfWeek = "*", year = "*")
+    public void cleanUpDiskCache() {
+        Path root = repositoryService.getRepoRoot().resolve(WMS_REPO_ROOT_FOLDER);
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+
+        long t0 = System.currentTimeMillis();
+        long expiryTime = t0 - getMaxAgeMillis();
+        int deleted = 0;
+        try (Stream<Path> files = Files.walk(root)) {
+            List<TileFile> tileFiles = files
+                    .filter(Files::isRegularFile)
+                    .map(TileFile::new)
+                    .sorted()
+                    .collect(Collectors.toList());
+
+            long totalSize = tileFiles.stream().mapToLong(f -> f.size).sum();
+            long maxSize = diskCacheMaxMB * 1024L * 1024L;
+            for (TileFile tileFile : tileFiles) {
+                if (tileFile.modified >= expiryTime && totalSize <= maxSize) {
+                    break;
+                }
+                Files.deleteIfExists(tileFile.path);
+                totalSize -= tileFile.size;
+                deleted++;
+            }
+        } catch (IOException e) {
+            log.error("Failed cleaning up WMS tile cache", e);
+        }
+        log.info("Deleted " + deleted + " WMS tiles in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * Returns the max age of tiles in milliseconds
+     * @return the max age of tiles in milliseconds
+     */
+    private long getMaxAgeMillis() {
+        return maxAgeHours * 60L * 60L * 1000L;
+    }
+
+    /**
+     * A cached tile
+     */
+    private class CachedTile {
+        final byte[] data;
+        final long created;
+
+        CachedTile(byte[] data, long created) {
+            this.data = data;
+            this.created = created;
+        }
+
+        boolean isExpired() {
+            return created < System.currentTimeMillis() - getMaxAgeMillis();
+        }
+    }
+
+    /**
+     * A tile file on disk, ordered oldest first
+     */
+    private static class TileFile implements Comparable<TileFile> {
+        final Path path;
+        final long modified;
+        final long size;
+
+        TileFile(Path path) {
+            this.path = path;
+            long modified = 0L, size = 0L;
+            try {
+                modified = Files.getLastModifiedTime(path).toMillis();
+                size = Files.size(path);
+            } catch (IOException ignored) {
+            }
+            this.modified = modified;
+            this.size = size;
+        }
+
+        @Override
+        public int compareTo(TileFile other) {
+            return Long.compare(modified, other.modified);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import dk.dma.msiproxy.common.http.UpstreamHttpClient;
+import dk.dma.msiproxy.common.settings.annotation.Setting;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.imageio.ImageIO;
+import javax.inject.Inject;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Loads WMS tiles from the WMS server defined by the "wmsProvider" settings,
+ * masks out white colour and caches the resulting tiles.
+ * <p>
+ * Tiles are cached by the {@link WmsTileCache}, and may be fetched in blocks
+ * of tiles by the {@link WmsMetaTiler}.
+ */
+@ApplicationScoped
+public class WmsTileService {
+
+    @Inject
+    Logger log;
+
+    @Inject
+    WmsTileCache wmsTileCache;
+
+    @Inject
+    WmsMetaTiler wmsMetaTiler;
+
+    @Inject
+    UpstreamHttpClient httpClient;
+
+    @Inject
+    @Setting(value = "wmsProvider", defaultValue = "")
+    String wmsProvider;
+
+    @Inject
+    @Setting(value = "wmsServiceName", defaultValue = "")
+    String wmsServiceName;
+
+    @Inject
+    @Setting(value = "wmsLogin", defaultValue = "")
+    String wmsLogin;
+
+    @Inject
+    @Setting(value = "wmsPassword", defaultValue = "")
+    String wmsPassword;
+
+    /**
+     * Returns if the WMS provider has been defined using system properties
+     * @return if the WMS provider has been defined
+     */
+    public boolean isConfigured() {
+        return StringUtils.isNotBlank(wmsServiceName) && StringUtils.isNotBlank(wmsProvider) &&
+                StringUtils.isNotBlank(wmsLogin) && StringUtils.isNotBlank(wmsPassword);
+    }
+
+    /**
+     * Returns the cache key for the given WMS request parameters
+     * @param paramMap the WMS request parameters
+     * @return the cache key
+     */
+    public String getKey(Map<String, String[]> paramMap) {
+        return wmsTileCache.getKey(paramMap);
+    }
+
+    /**
+     * Returns the tile if it is cached and has not expired. Never calls the WMS server.
+     * @param key the tile key
+     * @return the tile PNG data, or null if not cached
+     */
+    public byte[] getCachedTile(String key) {
+        return wmsTileCache.getCachedTile(key);
+    }
+
+    /**
+     * Returns if a non-expired tile is cached on disk, without reading it
+     * into the memory cache. Never calls the WMS server.
+     * @param key the tile key
+     * @return if a non-expired tile is cached on disk
+     */
+    public boolean isTileCachedOnDisk(String key) {
+        return wmsTileCache.isTileCachedOnDisk(key);
+    }
+
+    /**
+     * Returns the tile for the given WMS request parameters.
+     * Loads the tile from the WMS server if it is not cached.
+     *
+     * @param key the tile key
+     * @param paramMap the WMS request parameters
+     * @return the tile PNG data, or null if the WMS server returned no image
+     */
+    public byte[] getTile(String key, Map<String, String[]> paramMap) throws Exception {
+        WmsMetaTiler.MetaTile metaTile = wmsMetaTiler.getMetaTile(paramMap);
+        return wmsTileCache.getTile(key, () -> {
+            if (metaTile != null) {
+                byte[] data = wmsMetaTiler.getTile(metaTile, key, this::loadImage);
+                if (data != null) {
+                    return data;
+                }
+            }
+            return loadTile(paramMap);
+        });
+    }
+
+    /**
+     * Returns the WMS URL for the given request parameters
+     * @param paramMap the request parameters
+     * @return the WMS URL
+     */
+    private String getWmsUrl(Map<String, String[]> paramMap) {
+        String params = paramMap
+                .entrySet()
+                .stream()
+                .map(p -> String.format("%s=%s", p.getKey(), p.getValue()[0]))
+                .collect(Collectors.joining("&"));
+        params += String.format("&SERVICENAME=%s&LOGIN=%s&PASSWORD=%s", wmsServiceName, wmsLogin, wmsPassword);
+
+        return wmsProvider + "?" + params;
+    }
+
+    /**
+     * Loads the WMS image and masks out white colour
+     * @param paramMap the request parameters
+     * @return the resulting image, or null if the WMS server returned no image
+     */
+    private BufferedImage loadImage(Map<String, String[]> paramMap) throws IOException {
+        String url = getWmsUrl(paramMap);
+        log.trace("Loading image " + url);
+        try {
+            BufferedImage image = httpClient.getImage(url);
+            return image == null ? null : WmsImageMask.transformWhiteToTransparent(image);
+        } catch (IOException e) {
+            log.trace("Failed loading WMS image for URL " + url);
+            throw e;
+        }
+    }
+
+    /**
+     * Loads a single WMS tile and masks out white colour
+     * @param paramMap the request parameters
+     * @return the resulting PNG data, or null if the WMS server returned no image
+     */
+    private byte[] loadTile(Map<String, String[]> paramMap) throws IOException {
+        BufferedImage image = loadImage(paramMap);
+        if (image == null) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", bytes);
+        image.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -2,7 +2,7 @@
 <%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/functions" prefix="fn" %>
 <%@ taglib uri="/WEB-INF/tags/functions" prefix="msi" %>
-<html>
+<html xmlns="http://www.w3.org/1999/xhtml">
 <fmt:setLocale value="${lang}"/>
 <fmt:bundle basename="MessageDetails">
 <head>
@@ -123,7 +123,7 @@
         <c:if test="${not empty areaHeading and areaHeadingId != areaHeading.id}">
             <c:set var="areaHeadingId" value="${areaHeading.id}"/>
             <tr>
-                <td colspan="2"><h2>${msi:areaLineage(areaHeading, null)}</h2></td>
+                <td colspan="2"><h2>${fn:escapeXml(msi:areaLineage(areaHeading, null))}</h2></td>
             </tr>
         </c:if>
         <tr>
@@ -139,8 +139,8 @@
                 </c:if>
                 <div>
                     <strong>
-                        ${msi:messageTitleLine(msg, areaHeading)}
-                        <c:if test="${not empty msg.seriesIdentifier.number}">&nbsp;(${msg.seriesIdentifier.shortId})</c:if>
+                        ${fn:escapeXml(msi:messageTitleLine(msg, areaHeading))}
+                        <c:if test="${not empty msg.seriesIdentifier.number}">&#160;(${fn:escapeXml(msg.seriesIdentifier.shortId)})</c:if>
                     </strong>
                 </div>
 
@@ -152,7 +152,7 @@
                             <tr>
                                 <td class="field-name"><fmt:message key="field_reference"/></td>
                                 <td class="field-value">
-                                    ${ref.seriesIdentifier.fullId}
+                                    ${fn:escapeXml(ref.seriesIdentifier.fullId)}
                                     <c:choose>
                                         <c:when test="${ref.type == 'REPETITION'}"><fmt:message key="ref_repitition"/> </c:when>
                                         <c:when test="${ref.type == 'CANCELLATION'}"><fmt:message key="ref_cancelled"/> </c:when>
@@ -188,11 +188,11 @@
                             <td class="field-value">
                                 <c:forEach var="loc" items="${msg.locations}">
                                     <c:if test="${not empty loc.descs}">
-                                        <div>${loc.descs[0].description}</div>
+                                        <div>${fn:escapeXml(loc.descs[0].description)}</div>
                                     </c:if>
                                     <c:forEach var="point" items="${loc.points}">
                                         <div>
-                                            ${msi:formatPos(locale, 'DEC', point.lat, point.lon)}<c:if test="${not empty point.descs}">, ${point.descs[0].description}</c:if>
+                                            ${msi:formatPos(locale, 'DEC', point.lat, point.lon)}<c:if test="${not empty point.descs}">, ${fn:escapeXml(point.descs[0].description)}</c:if>
                                         </div>
                                     </c:forEach>
                                 </c:forEach>
@@ -205,7 +205,7 @@
                         <tr>
                             <td class="field-name"><fmt:message key="field_details"/></td>
                             <td class="field-value">
-                                ${msg.descs[0].description}
+                                ${pdf ? msi:html2xhtml(msg, msg.descs[0].description) : msg.descs[0].description}
                             </td>
                         </tr>
                     </c:if>
@@ -218,12 +218,12 @@
                                 <c:forEach var="file" items="${msg.attachments}" varStatus="status">
                                     <span class="attachment">
                                             <div class="attachment-image">
-                                                <a href="${baseUri}/rest/repo/file/${file.path}" target="_blank">
-                                                    <img src="/rest/repo/thumb/${file.path}?size=64">
+                                                <a href="${baseUri}/rest/repo/file/${fn:escapeXml(file.path)}" target="_blank">
+                                                    <img src="/rest/repo/thumb/${fn:escapeXml(file.path)}?size=64<c:if test="${pdf}">&amp;wait=10</c:if>"/>
                                                 </a>
                                             </div>
                                             <div class="attachment-label">
-                                                ${file.name}
+                                                ${fn:escapeXml(file.name)}
                                             </div>
                                     </span>
                                 </c:forEach>
@@ -236,7 +236,7 @@
                         <tr>
                             <td class="field-name"><fmt:message key="field_note"/></td>
                             <td class="field-value">
-                                    ${msg.descs[0].note}
+                                    ${pdf ? msi:html2xhtml(msg, msg.descs[0].note) : msg.descs[0].note}
                             </td>
                         </tr>
                     </c:if>
@@ -247,7 +247,7 @@
                             <td class="field-name"><fmt:message key="field_charts"/></td>
                             <td class="field-value">
                                 <c:forEach var="chart" items="${msg.charts}" varStatus="status">
-                                    ${chart.chartNumber}<c:if test="${not empty chart.internationalNumber}"> (INT ${chart.internationalNumber})</c:if><c:if test="${not status.last}">, </c:if>
+                                    ${fn:escapeXml(chart.chartNumber)}<c:if test="${not empty chart.internationalNumber}"> (INT ${fn:escapeXml(chart.internationalNumber)})</c:if><c:if test="${not status.last}">, </c:if>
                                 </c:forEach>
                             </td>
                         </tr>
@@ -258,7 +258,7 @@
                         <tr>
                             <td class="field-name"><fmt:message key="field_publication"/></td>
                             <td class="field-value">
-                                    ${msg.descs[0].publication}
+                                    ${pdf ? msi:html2xhtml(msg, msg.descs[0].publication) : msg.descs[0].publication}
                             </td>
                         </tr>
                     </c:if>
@@ -267,7 +267,7 @@
                     <c:if test="${not empty msg.descs and not empty msg.descs[0].source}">
                         <tr>
                             <td class="field-name" colspan="2">
-                                (${msg.descs[0].source})
+                                (${fn:escapeXml(msg.descs[0].source)})
                             </td>
                         </tr>
                     </c:if>
@@ -0,0 +1,114 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+
+/**
+ * Unit tests for the WmsImageMask.
+ * <p>
+ * Checks that the palette and pixel array masking yield the same pixels as the
+ * original per-pixel masking in {@link WmsTransformBenchmark}.
+ */
+public class WmsImageMaskTest {
+
+    /** Colours at and around the masking distance of the masked colours */
+    static final int[] COLORS = {
+            0xFFFFFFFF,     // white
+            0xFFDDF1EF,     // sea
+            0xFFFAFAF5,     // distance 20 from white
+            0xFFFAFAF4,     // distance 21 from white
+            0xFFD3F1EF,     // distance 10 from sea
+            0xFFC9F1EF,     // distance 20 from sea
+            0xFFC8F1EF,     // distance 21 from sea
+            0xFF000000,     // black
+            0xFFFFE6AA,     // land
+            0xFF2040C0      // blue
+    };
+
+    static final int SIZE = 16;
+
+    @Test
+    public void indexedImageTest() {
+        IndexColorModel cm = new IndexColorModel(8, COLORS.length, COLORS, 0, false, -1, DataBuffer.TYPE_BYTE);
+        assertSameMask(
+                createImage(new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_INDEXED, cm)),
+                createImage(new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_INDEXED, cm)));
+    }
+
+    @Test
+    public void argbImageTest() {
+        assertSameMask(
+                createImage(new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB)),
+                createImage(new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB)));
+    }
+
+    @Test
+    public void rgbImageTest() {
+        assertSameMask(
+                createImage(new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_3BYTE_BGR)),
+                createImage(new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_3BYTE_BGR)));
+    }
+
+    /**
+     * Fills the image with the test colours
+     * @param image the image to fill
+     * @return the image
+     */
+    private BufferedImage createImage(BufferedImage image) {
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                image.setRGB(x, y, COLORS[(x + y * SIZE) % COLORS.length]);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Masks the two identical images using the original and the optimized masking,
+     * and checks that the resulting pixels are identical
+     * @param image1 the image to mask using the original masking
+     * @param image2 the image to mask using the optimized masking
+     */
+    private void assertSameMask(BufferedImage image1, BufferedImage image2) {
+        BufferedImage expected = WmsTransformBenchmark.originalTransformWhiteToTransparent(image1);
+        BufferedImage actual = WmsImageMask.transformWhiteToTransparent(image2);
+
+        Assert.assertEquals(expected.getWidth(), actual.getWidth());
+        Assert.assertEquals(expected.getHeight(), actual.getHeight());
+        int masked = 0;
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                Assert.assertEquals(
+                        "Pixel " + x + "," + y,
+                        Integer.toHexString(expected.getRGB(x, y)),
+                        Integer.toHexString(actual.getRGB(x, y)));
+                if (actual.getRGB(x, y) >>> 24 == 0) {
+                    masked++;
+                }
+            }
+        }
+
+        // White, sea and the colours within the masking distance are masked
+        Assert.assertTrue(masked > 0);
+        Assert.assertTrue(masked < SIZE * SIZE);
+    }
+}
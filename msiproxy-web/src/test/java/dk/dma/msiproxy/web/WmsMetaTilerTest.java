@@ -0,0 +1,206 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Unit tests for the WmsMetaTiler.
+ * <p>
+ * The tile requests are composed the way map clients do, i.e. using the EPSG:3857 tile
+ * grid of {@link GlobalMercator}, with BBOX coordinates formatted as plain doubles.
+ */
+public class WmsMetaTilerTest {
+
+    static final int N = 4;
+    static final int TILE_SIZE = GlobalMercator.TILE_SIZE;
+
+    GlobalMercator mercator = new GlobalMercator();
+    WmsMetaTiler metaTiler;
+    Map<String, byte[]> cachedTiles = new HashMap<>();
+
+    @Before
+    public void setup() {
+        // Records the tiles stored by the metatiler instead of writing them to the repository
+        WmsTileCache wmsTileCache = new WmsTileCache() {
+            @Override
+            public void putTile(String key, byte[] data) {
+                cachedTiles.put(key, data);
+            }
+        };
+
+        metaTiler = new WmsMetaTiler();
+        metaTiler.log = LoggerFactory.getLogger(WmsMetaTiler.class);
+        metaTiler.wmsTileCache = wmsTileCache;
+        metaTiler.metaTileSize = (long) N;
+    }
+
+    @Test
+    public void gridAlignmentTest() {
+        int z = 10;
+        // Tiles east and west of Greenwich, i.e. with positive and negative grid columns
+        for (int[] t : new int[][] { { 545, 680 }, { 546, 683 }, { 510, 320 }, { 508, 323 } }) {
+            WmsMetaTiler.MetaTile metaTile = metaTiler.getMetaTile(getTileParams(t[0], t[1], z));
+            Assert.assertNotNull(metaTile);
+
+            long col = t[0] - (1L << (z - 1));
+            long row = t[1] - (1L << (z - 1));
+            Assert.assertEquals(0, metaTile.col0 % N);
+            Assert.assertEquals(0, metaTile.row0 % N);
+            Assert.assertTrue(col >= metaTile.col0 && col < metaTile.col0 + N);
+            Assert.assertTrue(row >= metaTile.row0 && row < metaTile.row0 + N);
+            Assert.assertEquals(TILE_SIZE, metaTile.width);
+            Assert.assertEquals(TILE_SIZE, metaTile.height);
+        }
+
+        // All tiles of a metatile share the metatile key
+        Assert.assertEquals(
+                metaTiler.getMetaTile(getTileParams(544, 680, z)).getKey(),
+                metaTiler.getMetaTile(getTileParams(547, 683, z)).getKey());
+        Assert.assertNotEquals(
+                metaTiler.getMetaTile(getTileParams(544, 680, z)).getKey(),
+                metaTiler.getMetaTile(getTileParams(548, 680, z)).getKey());
+
+        // Tiles not aligned to the grid are not metatiled
+        Map<String, String[]> params = getTileParams(545, 680, z);
+        double[] b = mercator.TileBounds(545, 680, z);
+        double shift = (b[2] - b[0]) / 2.0;
+        params.put("BBOX", new String[] { bbox(b[0] + shift, b[1], b[2] + shift, b[3]) });
+        Assert.assertNull(metaTiler.getMetaTile(params));
+
+        // Nor are malformed requests, or any requests if metatiling is disabled
+        params.put("BBOX", new String[] { "1,2,3" });
+        Assert.assertNull(metaTiler.getMetaTile(params));
+        metaTiler.metaTileSize = 1L;
+        Assert.assertNull(metaTiler.getMetaTile(getTileParams(545, 680, z)));
+    }
+
+    @Test
+    public void tileKeyTest() {
+        for (int z = 6; z <= 14; z++) {
+            int[] t = mercator.MetersToTile(1_200_000, 7_500_000, z);
+            WmsMetaTiler.MetaTile metaTile = metaTiler.getMetaTile(getTileParams(t[0], t[1], z));
+            Assert.assertNotNull(metaTile);
+
+            // The keys of the sliced tiles must match the keys of the client requests
+            int tx0 = (int) (metaTile.col0 + (1L << (z - 1)));
+            int ty0 = (int) (metaTile.row0 + (1L << (z - 1)));
+            for (int i = 0; i < N; i++) {
+                for (int j = 0; j < N; j++) {
+                    Assert.assertEquals(
+                            "Tile " + i + "," + j + " at zoom " + z,
+                            metaTiler.wmsTileCache.getKey(getTileParams(tx0 + i, ty0 + j, z)),
+                            metaTiler.wmsTileCache.getKey(metaTile.getTileParams(i, j)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rowSlicingTest() throws Exception {
+        int z = 10;
+        WmsMetaTiler.MetaTile metaTile = metaTiler.getMetaTile(getTileParams(545, 680, z));
+        int tx0 = (int) (metaTile.col0 + (1L << (z - 1)));
+        int ty0 = (int) (metaTile.row0 + (1L << (z - 1)));
+
+        // Paint each tile of the metatile image with a distinct colour. Image rows run from north to south
+        List<Map<String, String[]>> loaded = new ArrayList<>();
+        String key = metaTiler.wmsTileCache.getKey(getTileParams(545, 680, z));
+        byte[] tile = metaTiler.getTile(metaTile, key, params -> {
+            loaded.add(params);
+            BufferedImage image = new BufferedImage(N * TILE_SIZE, N * TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            for (int x = 0; x < N; x++) {
+                for (int y = 0; y < N; y++) {
+                    g.setColor(getColor(x, N - 1 - y));
+                    g.fillRect(x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+                }
+            }
+            g.dispose();
+            return image;
+        });
+
+        // The metatile is loaded in a single request covering all tiles
+        Assert.assertEquals(1, loaded.size());
+        Assert.assertEquals(String.valueOf(N * TILE_SIZE), loaded.get(0).get("WIDTH")[0]);
+        Assert.assertEquals(String.valueOf(N * TILE_SIZE), loaded.get(0).get("HEIGHT")[0]);
+        double[] sw = mercator.TileBounds(tx0, ty0, z);
+        double[] ne = mercator.TileBounds(tx0 + N - 1, ty0 + N - 1, z);
+        Assert.assertArrayEquals(
+                new double[] { sw[0], sw[1], ne[2], ne[3] },
+                Arrays.stream(loaded.get(0).get("BBOX")[0].split(",")).mapToDouble(Double::parseDouble).toArray(),
+                1e-3);
+
+        // Each tile is cut from the part of the image covering its BBOX
+        Assert.assertEquals(N * N, cachedTiles.size());
+        Assert.assertArrayEquals(cachedTiles.get(key), tile);
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                String tileKey = metaTiler.wmsTileCache.getKey(getTileParams(tx0 + i, ty0 + j, z));
+                BufferedImage tileImage = ImageIO.read(new ByteArrayInputStream(cachedTiles.get(tileKey)));
+                Assert.assertEquals(TILE_SIZE, tileImage.getWidth());
+                Assert.assertEquals(getColor(i, j).getRGB(), tileImage.getRGB(0, 0));
+                Assert.assertEquals(getColor(i, j).getRGB(), tileImage.getRGB(TILE_SIZE - 1, TILE_SIZE - 1));
+            }
+        }
+    }
+
+    /** Returns a distinct colour for the tile with the given column and row offset, with rows from south to north */
+    private static Color getColor(int i, int j) {
+        return new Color(40 + 50 * i, 40 + 50 * j, 128);
+    }
+
+    /** Returns the WMS request parameters of a map client requesting the given TMS tile */
+    private Map<String, String[]> getTileParams(int tx, int ty, int z) {
+        double[] b = mercator.TileBounds(tx, ty, z);
+        Map<String, String[]> params = new LinkedHashMap<>();
+        params.put("LAYERS", new String[] { "cells" });
+        params.put("TRANSPARENT", new String[] { "TRUE" });
+        params.put("SERVICE", new String[] { "WMS" });
+        params.put("VERSION", new String[] { "1.1.1" });
+        params.put("REQUEST", new String[] { "GetMap" });
+        params.put("STYLES", new String[] { "" });
+        params.put("FORMAT", new String[] { "image/png" });
+        params.put("SRS", new String[] { "EPSG:3857" });
+        params.put("BBOX", new String[] { bbox(b[0], b[1], b[2], b[3]) });
+        params.put("WIDTH", new String[] { String.valueOf(TILE_SIZE) });
+        params.put("HEIGHT", new String[] { String.valueOf(TILE_SIZE) });
+        return params;
+    }
+
+    /** Formats the BBOX the way map clients do */
+    private static String bbox(double... coords) {
+        return Arrays.stream(coords)
+                .mapToObj(String::valueOf)
+                .collect(Collectors.joining(","));
+    }
+}
@@ -0,0 +1,133 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.msiproxy.web;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import static dk.dma.msiproxy.web.WmsImageMask.COLOR_DIST;
+import static dk.dma.msiproxy.web.WmsImageMask.MASKED_COLORS;
+
+/**
+ * Compares the original per-pixel {@code getRGB}/{@code setRGB} masking of WMS tiles
+ * with {@code WmsImageMask.transformWhiteToTransparent()}, for RGB and indexed tiles
+ * of 256x256 and 512x512 pixels.
+ * <p>
+ * Run using the main method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WmsTransformBenchmark {
+
+    @Param({ "256", "512" })
+    int size;
+
+    @Param({ "rgb", "indexed" })
+    String type;
+
+    BufferedImage tile;
+
+    @Setup
+    public void setup() {
+        tile = new BufferedImage(size, size,
+                "indexed".equals(type) ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_3BYTE_BGR);
+
+        // A white tile with some sea and land areas, similar to a chart WMS tile
+        Graphics2D g2 = tile.createGraphics();
+        g2.setColor(Color.WHITE);
+        g2.fillRect(0, 0, size, size);
+        g2.setColor(new Color(221, 241, 239));
+        g2.fillOval(0, 0, size / 2, size);
+        g2.setColor(new Color(255, 230, 170));
+        g2.fillRect(size / 2, size / 4, size / 3, size / 2);
+        g2.setColor(Color.BLACK);
+        for (int i = 0; i < size; i += 16) {
+            g2.drawLine(0, i, size, size - i);
+        }
+        g2.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage original() {
+        return originalTransformWhiteToTransparent(tile);
+    }
+
+    @Benchmark
+    public BufferedImage optimized() {
+        return WmsImageMask.transformWhiteToTransparent(tile);
+    }
+
+    /**
+     * The original masking implementation of {@code WmsProxyServlet}
+     */
+    static BufferedImage originalTransformWhiteToTransparent(BufferedImage image) {
+
+        BufferedImage dest = image;
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            dest = new BufferedImage(image.getWidth(null), image.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2 = dest.createGraphics();
+            g2.drawImage(image, 0, 0, null);
+            g2.dispose();
+        }
+
+        final int width = image.getWidth();
+        int[] imgData = new int[width];
+
+        for (int y = 0; y < dest.getHeight(); y++) {
+            dest.getRGB(0, y, width, 1, imgData, 0, 1);
+            for (int x = 0; x < width; x++) {
+                for (Color col : MASKED_COLORS) {
+                    int colDist
+                            = Math.abs(col.getRed() - (imgData[x] >> 16 & 0x000000FF))
+                            + Math.abs(col.getGreen() - (imgData[x] >> 8 & 0x000000FF))
+                            + Math.abs(col.getBlue() - (imgData[x] & 0x000000FF));
+                    if (colDist <= COLOR_DIST) {
+                        imgData[x] = 0x00FFFFFF & imgData[x];
+                    }
+                }
+            }
+            dest.setRGB(0, y, width, 1, imgData, 0, 1);
+        }
+        return dest;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(WmsTransformBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}